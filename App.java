@@ -2,18 +2,34 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.prefs.Preferences;
+import javax.sql.DataSource;
 
 public class App extends JFrame {
-    private Connection conn;
+    private PooledDataSource dataSource;
     private Preferences prefs;
     private final String SESSION_KEY = "logged_in_user";
+    // A signed, expiring token proves the stored session came from a successful login
+    // Issued by the sync server on login; only the server can check it
+    private final String TOKEN_KEY = "session_token";
+    private final CredentialCache credentialCache = new CredentialCache();
     private File notesFolder;
     private JList<String> noteList;
     private JTextArea noteContentArea;
@@ -23,24 +39,82 @@ public class App extends JFrame {
     private JButton deleteFileButton;
     private JButton deleteSelectedButton;
     private JButton selectAllButton;
-    private DefaultListModel<String> noteListModel;
-    private Socket socket;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private JButton importButton;
+    private SortedNoteListModel noteListModel;
+    private volatile VaultWatcher vaultWatcher;
+    private final ConnectionManager connection = ConnectionManager.fromSystemProperties();
+    private SyncManifest syncManifest;
+    // Every mutation goes through here so it survives the server (or this app) going away before it is sent
+    private volatile OperationJournal journal;
+    // Set while a dashboard is showing; server pushes and reconnect syncs apply to this user's vault
+    private volatile String dashboardUser;
+    // The note open for editing, which pushed changes must not overwrite under the user's cursor
+    private volatile String editingNote;
+    // Bulk operations are split into BATCH messages of roughly this many content bytes
+    private static final int MAX_BATCH_BYTES = 4 * 1024 * 1024;
+    // The signed-in user's search index; replaced as a whole on logout, so work queued for one user never
+    // reaches the next user's index
+    private volatile IndexSession indexSession;
+    // Local edits only: saves and autosaves are recorded, notes pulled from the server are not
+    private volatile RevisionLog revisionLog;
+    private JTextField searchField;
+    private JScrollPane noteContentScrollPane;
+    private AutosaveEngine autosave;
+    private LargeNoteViewer largeNoteViewer;
+    // Notes above this size open in the read-only memory-mapped viewer instead of the JTextArea
+    private static final long LARGE_NOTE_THRESHOLD = 8L * 1024 * 1024;
+    private final NoteContentCache contentCache = new NoteContentCache("cache.notes");
+    // Content the server is known to hold for recently touched notes; the base for UPDATE_FILE_PATCH
+    private final NoteContentCache serverBaseCache = new NoteContentCache("cache.serverBase");
+    private ChunkedTransfer chunkedTransfer = new ChunkedTransfer(this::sendRequest);
+    // Writes the inline notes of a sync response in parallel, off the EDT
+    private final SyncApplier syncApplier = new SyncApplier();
+    private JProgressBar syncProgress;
+    // Syncs smaller than this finish too quickly for a progress bar to be worth showing
+    private static final int SYNC_PROGRESS_THRESHOLD = 200;
 
     public App() {
-        try {
-            socket = new Socket("localhost", 12345);
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        connection.setConnectedHandler(() -> {
+            OperationJournal current = journal;
+            if (current != null) {
+                current.resume();
+            }
+            // Catch up on whatever was pushed while we were disconnected
+            String user = dashboardUser;
+            if (user != null) {
+                SwingUtilities.invokeLater(() -> {
+                    if (user.equals(dashboardUser)) {
+                        syncWithServer(user);
+                    }
+                });
+            }
+        });
+        connection.setUnsolicitedHandler(this::handleServerPush);
         prefs = Preferences.userNodeForPackage(App.class);
+        connection.setTokenHandler((user, token) -> {
+            // Unless the user has logged out (or switched) in the meantime
+            if (user.equals(prefs.get(SESSION_KEY, null))) {
+                prefs.put(TOKEN_KEY, token);
+            }
+        });
+        // The server has the final say on a session: back to the login screen if it turns ours down
+        connection.setRejectedHandler(user -> SwingUtilities.invokeLater(() -> {
+            if (user.equals(dashboardUser)) {
+                logout(user);
+                JOptionPane.showMessageDialog(this, "The sync server did not accept your session. Please log in again.",
+                        "Session expired", JOptionPane.WARNING_MESSAGE);
+            }
+        }));
+        connection.start();
         connectToDatabase();
         checkSession();
     }
 
+    // Sends a request without blocking; the future completes off the EDT
+    private CompletableFuture<FileOperation> sendRequest(FileOperation op) {
+        return connection.submit(op);
+    }
+
     private String removeExtension(String fileName) {
         if (fileName != null && fileName.endsWith(".txt")) {
             return fileName.substring(0, fileName.length() - 4);
@@ -56,24 +130,49 @@ public class App extends JFrame {
     }
 
     private void connectToDatabase() {
-        try {
-            conn = DriverManager.getConnection("jdbc:mysql://localhost:3306/jnote", "root", "root");
-        } catch (SQLException e) {
+        // Small pool: auth is the only DB traffic, but logins arrive in bursts
+        dataSource = new PooledDataSource("jdbc:mysql://localhost:3306/jnote", "root", "root", 4, 16);
+        // Borrow once up front so a bad configuration is reported at startup, as before, without holding up the window
+        new AuthWorker().start(attempt -> {
+            try (Connection conn = dataSource.getConnection()) {
+                if (!conn.isValid(AuthWorker.TIMEOUT_SECONDS)) {
+                    throw new SQLException("Database connection is not valid");
+                }
+                return null;
+            }
+        }, ignored -> {
+        }, error -> {
             JOptionPane.showMessageDialog(this, "Error connecting to the database!", "Error",
                     JOptionPane.ERROR_MESSAGE);
-            e.printStackTrace();
-        }
+            error.printStackTrace();
+        });
     }
 
+    // Resumes the last session while its token is unexpired, or the signed-in user if the server never issued
+    // a token. Only the server can check the session, and it does on every connection (rejecting a missing
+    // token if it requires one); locally it just reopens this user's own vault.
     private void checkSession() {
-        String loggedInUser = prefs.get(SESSION_KEY, null);
-        if (loggedInUser != null) {
+        String token = prefs.get(TOKEN_KEY, null);
+        String loggedInUser = token == null ? prefs.get(SESSION_KEY, null) : SessionTokens.claimedUser(token);
+        if (loggedInUser != null && loggedInUser.equals(prefs.get(SESSION_KEY, null))) {
+            connection.setSession(loggedInUser, token);
             showDashboard(loggedInUser);
         } else {
+            prefs.remove(TOKEN_KEY);
+            prefs.remove(SESSION_KEY);
             showLoginScreen(); // Show only login screen by default
         }
     }
 
+    // After the database has accepted a login or a new account. The sync server checks the password again
+    // and issues the session token, which arrives through the token handler (later, if offline right now).
+    private void startSession(String username, String password) {
+        prefs.remove(TOKEN_KEY);
+        prefs.put(SESSION_KEY, username);
+        connection.login(username, password);
+        showDashboard(username);
+    }
+
     private void showLoginScreen() {
         setTitle("Login");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -81,7 +180,7 @@ public class App extends JFrame {
         setLocationRelativeTo(null);
         setLayout(new BorderLayout());
 
-        Login loginPanel = new Login(conn, this::showDashboard);
+        Login loginPanel = new Login(dataSource, credentialCache, this::startSession);
 
         // Add navigation label
         JLabel registerLabel = new JLabel("Don't have an account? Register here", SwingConstants.CENTER);
@@ -111,7 +210,7 @@ public class App extends JFrame {
         setLocationRelativeTo(null);
         setLayout(new BorderLayout());
 
-        Register registerPanel = new Register(conn, this::showDashboard);
+        Register registerPanel = new Register(dataSource, connection, this::startSession);
 
         // Add navigation label
         JLabel loginLabel = new JLabel("Already have an account? Login here", SwingConstants.CENTER);
@@ -140,15 +239,31 @@ public class App extends JFrame {
         getContentPane().removeAll();
         setTitle("Dashboard - Notes");
 
-        notesFolder = new File("vault_" + username);
+        // Kept under the OS user's home so one desktop account never sees another's vault
+        notesFolder = new File(new File(System.getProperty("user.home"), ".jnote"), "vault_" + username);
         if (!notesFolder.exists()) {
-            notesFolder.mkdir();
+            notesFolder.mkdirs();
+        }
+        syncManifest = SyncManifest.load(notesFolder);
+        try {
+            File vault = notesFolder;
+            journal = OperationJournal.open(vault, op -> sendJournalRecord(vault, op), this::staleOperationFallback,
+                    this::reportRejected);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Could not open the pending changes journal: " + e.getMessage(),
+                    "Error", JOptionPane.ERROR_MESSAGE);
         }
+        try {
+            revisionLog = new RevisionLog(notesFolder);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        startSearchIndex();
 
         setLayout(new BorderLayout());
 
         // Initialize list model and note list FIRST
-        noteListModel = new DefaultListModel<>();
+        noteListModel = new SortedNoteListModel();
         noteList = new JList<>(noteListModel);
         noteList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
         noteList.addListSelectionListener(e -> loadNoteContent());
@@ -160,18 +275,43 @@ public class App extends JFrame {
         createFileButton.addActionListener(e -> createNewFile());
 
         selectAllButton = new JButton("Select All");
-        selectAllButton.addActionListener(e -> noteList.setSelectionInterval(0, noteListModel.size() - 1));
+        selectAllButton.addActionListener(e -> noteList.setSelectionInterval(0, noteListModel.getSize() - 1));
 
         deleteSelectedButton = new JButton("Delete Files"); // Changed button text
         deleteSelectedButton.addActionListener(e -> deleteSelectedFiles());
 
+        importButton = new JButton("Import");
+        importButton.addActionListener(e -> importFiles());
+
         fileManagementPanel.add(createFileButton);
+        fileManagementPanel.add(importButton);
         fileManagementPanel.add(selectAllButton);
         fileManagementPanel.add(deleteSelectedButton); // No deleteFileButton anymore
 
+        // Search box: filters the list to matching notes while it has text
+        searchField = new JTextField();
+        searchField.setToolTipText("Search notes");
+        searchField.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+            public void insertUpdate(javax.swing.event.DocumentEvent e) {
+                runSearch();
+            }
+
+            public void removeUpdate(javax.swing.event.DocumentEvent e) {
+                runSearch();
+            }
+
+            public void changedUpdate(javax.swing.event.DocumentEvent e) {
+                runSearch();
+            }
+        });
+
+        JPanel topLeftPanel = new JPanel(new BorderLayout());
+        topLeftPanel.add(fileManagementPanel, BorderLayout.NORTH);
+        topLeftPanel.add(searchField, BorderLayout.SOUTH);
+
         // Create left panel with file management and note list
         JPanel leftPanel = new JPanel(new BorderLayout());
-        leftPanel.add(fileManagementPanel, BorderLayout.NORTH);
+        leftPanel.add(topLeftPanel, BorderLayout.NORTH);
 
         JScrollPane noteListScrollPane = new JScrollPane(noteList);
         noteListScrollPane.setPreferredSize(new Dimension(200, 0));
@@ -180,7 +320,22 @@ public class App extends JFrame {
         // Create right panel with note content and buttons
         noteContentArea = new JTextArea();
         noteContentArea.setEditable(false);
-        JScrollPane noteContentScrollPane = new JScrollPane(noteContentArea);
+        noteContentScrollPane = new JScrollPane(noteContentArea);
+        autosave = new AutosaveEngine(noteContentArea, (fileName, content) -> {
+            try {
+                writeNoteLocally(fileName, content);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, this::uploadNote, fileName -> {
+            // With a journal the refusal has already been reported as a rejected change
+            if (journal == null) {
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                        "The sync server refused the autosave of " + removeExtension(fileName)
+                                + ". Your changes are saved on this computer.",
+                        "Autosave", JOptionPane.WARNING_MESSAGE));
+            }
+        });
 
         saveButton = new JButton("Save");
         saveButton.setEnabled(false);
@@ -189,9 +344,13 @@ public class App extends JFrame {
         editButton = new JButton("Edit");
         editButton.addActionListener(e -> enableEditing());
 
+        JButton historyButton = new JButton("History");
+        historyButton.addActionListener(e -> showHistory());
+
         JPanel buttonPanel = new JPanel();
         buttonPanel.add(editButton);
         buttonPanel.add(saveButton);
+        buttonPanel.add(historyButton);
 
         JPanel rightPanel = new JPanel(new BorderLayout());
         rightPanel.add(noteContentScrollPane, BorderLayout.CENTER);
@@ -210,11 +369,28 @@ public class App extends JFrame {
         logoutButton.addActionListener(e -> logout(username));
         headerPanel.add(logoutButton, BorderLayout.EAST); // Logout button on the right
 
+        syncProgress = new JProgressBar();
+        syncProgress.setStringPainted(true);
+        syncProgress.setVisible(false);
+        headerPanel.add(syncProgress, BorderLayout.SOUTH);
+
         add(headerPanel, BorderLayout.NORTH); // Add header to the top
         add(splitPane, BorderLayout.CENTER); // Add the split pane for notes
 
-        // Now that everything is initialized, sync with server
-        syncWithServer(username);
+        // Render straight from the metadata store, then keep the list current from file events
+        noteListModel.setAll(syncManifest.getFileNames().stream().map(this::removeExtension)
+                .collect(java.util.stream.Collectors.toList()));
+        startVaultWatcher();
+
+        // Catch up with edits made on disk while we were closed, then sync with the server, all off the EDT
+        // (if the server isn't reachable yet, the connection's reconnect handler syncs once it is)
+        dashboardUser = username;
+        CompletableFuture.runAsync(this::reconcileLocalVault)
+                .whenComplete((done, error) -> SwingUtilities.invokeLater(() -> {
+                    if (connection.isConnected()) {
+                        syncWithServer(username);
+                    }
+                }));
 
         revalidate();
         repaint();
@@ -222,50 +398,412 @@ public class App extends JFrame {
     }
 
     private void syncWithServer(String username) {
-        try {
-            out.writeObject(new FileOperation(OperationType.SYNC_REQUEST, username, "", null));
-            out.flush();
-
-            FileOperation response = (FileOperation) in.readObject();
-            if (response.getType() == OperationType.SYNC_RESPONSE) {
-                List<FileData> serverFiles = (List<FileData>) response.getData();
-                if (serverFiles != null) {
-                    for (FileData fileData : serverFiles) {
-                        File localFile = new File(notesFolder, fileData.getFileName());
-                        Files.writeString(localFile.toPath(), fileData.getContent());
+        // Only ask for what changed since our last cursor. Past the first sync the server only needs the
+        // hashes of notes we changed since then; it skips files whose hash we already hold
+        long cursor = syncManifest.getCursor();
+        Map<String, String> known = cursor == 0 ? syncManifest.getHashes() : syncManifest.getLocalChanges();
+        SyncDelta request = new SyncDelta(cursor, known);
+        sendRequest(new FileOperation(OperationType.SYNC_DELTA_REQUEST, username, "", request))
+                .thenCompose(response -> {
+                    // Runs on the pipeline's callback thread; the file writes go to the sync writer pool
+                    if (response.getType() == OperationType.SYNC_DELTA_RESPONSE
+                            && "CURSOR_UNKNOWN".equals(response.getContent())) {
+                        // The server no longer knows our cursor: start over with every hash we hold
+                        syncManifest.setCursor(0);
+                        syncWithServer(username);
+                    } else if (response.getType() == OperationType.SYNC_DELTA_RESPONSE) {
+                        return applySyncDelta(username, (SyncDelta) response.getData())
+                                .thenRun(() -> syncManifest.clearLocalChanges(known));
+                    } else if (response.getType() == OperationType.SYNC_RESPONSE
+                            && response.getData() != null) {
+                        // Older servers answer with the full vault
+                        List<FileData> serverFiles = (List<FileData>) response.getData();
+                        return applyChanges(username,
+                                new SyncDelta(syncManifest.getCursor(), serverFiles, new ArrayList<>()));
+                    }
+                    return CompletableFuture.<Void>completedFuture(null);
+                })
+                .exceptionally(e -> {
+                    e.printStackTrace();
+                    SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                            "Error syncing with server: " + rootCause(e).getMessage(),
+                            "Sync Error",
+                            JOptionPane.ERROR_MESSAGE));
+                    return null;
+                });
+    }
+
+    private static Throwable rootCause(Throwable e) {
+        while (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    // Applies inline entries immediately; the cursor only advances once every streamed download has landed
+    private CompletableFuture<Void> applySyncDelta(String username, SyncDelta delta) {
+        if (delta == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return applyChanges(username, delta)
+                .thenRun(() -> {
+                    syncManifest.setCursor(delta.getCursor());
+                    try {
+                        syncManifest.save();
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
                     }
+                });
+    }
+
+    // Writes and deletes what the server reports, leaving the cursor alone. Inline notes are written in
+    // parallel and join the note list in one go at the end; completes when streamed downloads have landed.
+    private CompletableFuture<Void> applyChanges(String username, SyncDelta delta) {
+        List<CompletableFuture<Void>> downloads = new ArrayList<>();
+        List<FileData> inline = new ArrayList<>();
+        if (delta.getChanged() != null) {
+            // Content the server left out because this delta or the vault already has it, found by hash
+            Map<String, String> inlineByHash = new HashMap<>();
+            Map<String, String> localByHash = new HashMap<>();
+            for (FileData fileData : delta.getChanged()) {
+                if (fileData.isStreamed()) {
+                    if (localByHash.isEmpty()) {
+                        syncManifest.getHashes().forEach((fileName, hash) -> localByHash.put(hash, fileName));
+                    }
+                } else if (fileData.getContent() != null) {
+                    inlineByHash.put(fileData.getHash(), fileData.getContent());
+                }
+            }
+            for (FileData fileData : delta.getChanged()) {
+                queueSyncedFile(username, fileData, inline, downloads, inlineByHash, localByHash);
+            }
+        }
+        Queue<String> written = new ConcurrentLinkedQueue<>();
+        boolean showProgress = inline.size() >= SYNC_PROGRESS_THRESHOLD;
+        // The watcher would otherwise report every one of these writes on its own
+        VaultWatcher watcher = inline.isEmpty() ? null : vaultWatcher;
+        if (watcher != null) {
+            watcher.pause();
+        }
+        CompletableFuture<Void> writes = syncApplier.apply(notesFolder.toPath(), inline, fileData -> {
+            syncManifest.put(fileData.getFileName(), fileData.getHash(), fileData.getVersion());
+            indexNote(fileData.getFileName(), fileData.getContent(), fileData.getHash());
+            written.add(fileData.getFileName());
+        }, (done, total) -> {
+            if (showProgress) {
+                SwingUtilities.invokeLater(() -> showSyncProgress(done, total));
+            }
+        }).whenComplete((done, error) -> {
+            if (watcher != null) {
+                watcher.resume(written);
+            }
+            SwingUtilities.invokeLater(() -> {
+                // Whatever made it to disk is listed at once, even if some writes failed
+                List<String> names = new ArrayList<>(written.size());
+                for (String fileName : written) {
+                    names.add(removeExtension(fileName));
+                }
+                noteListModel.addAll(names);
+                syncProgress.setVisible(false);
+            });
+        });
+        downloads.add(writes.thenRun(() -> applyDeletions(delta)));
+        return CompletableFuture.allOf(downloads.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private void showSyncProgress(int done, int total) {
+        syncProgress.setMaximum(total);
+        syncProgress.setValue(done);
+        syncProgress.setString("Syncing " + done + " of " + total + " notes");
+        syncProgress.setVisible(true);
+    }
+
+    private void applyDeletions(SyncDelta delta) {
+        if (delta.getDeleted() != null) {
+            for (String fileName : delta.getDeleted()) {
+                if (fileName.equals(editingNote)) {
+                    // Deleted elsewhere mid-edit: the local edit wins and recreates it on the server
+                    continue;
+                }
+                new File(notesFolder, fileName).delete();
+                contentCache.invalidate(fileName);
+                serverBaseCache.invalidate(fileName);
+                syncManifest.remove(fileName);
+                unindexNote(fileName);
+                forgetRevisions(fileName);
+                noteRemoved(fileName);
+            }
+        }
+        try {
+            syncManifest.save();
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    // Another device changed this user's vault. Only the pushed notes are touched; the cursor is left for
+    // the next delta sync, which skips whatever we already hold by hash.
+    private void handleServerPush(FileOperation op) {
+        String user = dashboardUser;
+        if (op.getType() != OperationType.CHANGE_EVENT || user == null || !user.equals(op.getUsername())
+                || !(op.getData() instanceof SyncDelta)) {
+            return;
+        }
+        SyncDelta delta = (SyncDelta) op.getData();
+        applyChanges(user, delta).whenComplete((done, error) -> {
+            if (error != null) {
+                error.printStackTrace();
+            }
+            SwingUtilities.invokeLater(() -> refreshShownNote(delta));
+        });
+    }
+
+    // Reloads the note on screen if a push just replaced it and it isn't being edited
+    private void refreshShownNote(SyncDelta delta) {
+        String selected = noteList.getSelectedValue();
+        if (selected == null || noteContentArea.isEditable() || delta.getChanged() == null) {
+            return;
+        }
+        for (FileData fileData : delta.getChanged()) {
+            if (fileData.getFileName().equals(addExtension(selected))) {
+                loadNoteContent();
+                return;
+            }
+        }
+    }
+
+    // Inline notes are added to inline for the writer pool. Metadata-only ones are copied from content
+    // already at hand when there is some, and otherwise start downloading now.
+    private void queueSyncedFile(String username, FileData fileData, List<FileData> inline,
+            List<CompletableFuture<Void>> downloads, Map<String, String> inlineByHash,
+            Map<String, String> localByHash) {
+        // Skip the write when the local copy is already identical, or is being edited and will be sent back
+        if (fileData.getHash() != null && fileData.getHash().equals(syncManifest.getHash(fileData.getFileName()))
+                || fileData.getFileName().equals(editingNote)) {
+            return;
+        }
+        File localFile = new File(notesFolder, fileData.getFileName());
+        contentCache.invalidate(fileData.getFileName());
+        serverBaseCache.invalidate(fileData.getFileName());
+        if (fileData.isStreamed()) {
+            String content = inlineByHash.get(fileData.getHash());
+            if (content != null) {
+                inline.add(new FileData(fileData.getFileName(), content, fileData.getVersion(), fileData.getHash()));
+                return;
+            }
+            String localCopy = localByHash.get(fileData.getHash());
+            CompletableFuture<Boolean> copied = localCopy == null || localCopy.equals(fileData.getFileName())
+                    ? CompletableFuture.completedFuture(false)
+                    : syncApplier.copy(new File(notesFolder, localCopy).toPath(), localFile.toPath(),
+                            fileData.getHash());
+            // Too large to inline, or the local copy changed since: pull it in chunks
+            downloads.add(copied
+                    .thenCompose(done -> done ? CompletableFuture.<Void>completedFuture(null)
+                            : chunkedTransfer.download(username, fileData, localFile.toPath()))
+                    .thenRun(() -> {
+                        contentCache.invalidate(fileData.getFileName());
+                        syncManifest.put(fileData.getFileName(), fileData.getHash(), fileData.getVersion());
+                        indexNoteFile(fileData.getFileName(), fileData.getHash());
+                        noteAdded(fileData.getFileName());
+                    }));
+            return;
+        }
+        inline.add(fileData);
+    }
+
+    private void reconcileLocalVault() {
+        try {
+            for (String fileName : syncManifest.reconcileWithDisk()) {
+                contentCache.invalidate(fileName);
+                serverBaseCache.invalidate(fileName);
+                if (new File(notesFolder, fileName).exists()) {
+                    indexNoteFile(fileName, syncManifest.getHash(fileName));
+                    noteAdded(fileName);
+                } else {
+                    unindexNote(fileName);
+                    noteRemoved(fileName);
                 }
-                updateNoteList();
             }
-        } catch (IOException | ClassNotFoundException e) {
+            syncManifest.save();
+        } catch (IOException e) {
             e.printStackTrace();
-            JOptionPane.showMessageDialog(this,
-                    "Error syncing with server: " + e.getMessage(),
-                    "Sync Error",
-                    JOptionPane.ERROR_MESSAGE);
         }
     }
 
+    // Full rescan of the vault; only needed when the watcher overflows
     private void updateNoteList() {
-        noteListModel.clear();
+        List<String> names = new ArrayList<>();
         if (notesFolder != null && notesFolder.isDirectory()) {
             File[] txtFiles = notesFolder.listFiles((dir, name) -> name.endsWith(".txt"));
             if (txtFiles != null) {
                 Arrays.stream(txtFiles)
                         .map(File::getName)
                         .map(this::removeExtension) // Remove .txt extension for display
-                        .sorted()
-                        .forEach(noteListModel::addElement);
+                        .forEach(names::add);
+            }
+        }
+        noteListModel.setAll(names);
+    }
+
+    private void startVaultWatcher() {
+        stopVaultWatcher();
+        try {
+            vaultWatcher = new VaultWatcher(notesFolder.toPath(),
+                    fileName -> noteListModel.add(removeExtension(fileName)),
+                    fileName -> noteListModel.remove(removeExtension(fileName)),
+                    this::updateNoteList);
+        } catch (IOException e) {
+            // Without a watcher the list still follows the app's own operations
+            e.printStackTrace();
+        }
+    }
+
+    private void stopVaultWatcher() {
+        if (vaultWatcher != null) {
+            vaultWatcher.close();
+            vaultWatcher = null;
+        }
+    }
+
+    // A user's index and the single thread that owns it: index updates all go through that thread, so they
+    // apply in the order they were made
+    private static class IndexSession {
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jnote-search-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+        volatile SearchIndex index;
+    }
+
+    private void startSearchIndex() {
+        stopSearchIndex();
+        IndexSession session = new IndexSession();
+        File folder = notesFolder;
+        session.executor.execute(() -> {
+            // Load the persisted index and only re-read notes that changed since it was saved
+            SearchIndex index = SearchIndex.load(folder);
+            try {
+                index.reconcile(folder, syncManifest.getHashes());
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+            session.index = index;
+        });
+        session.executor.scheduleWithFixedDelay(() -> saveSearchIndex(session), 30, 30, TimeUnit.SECONDS);
+        indexSession = session;
+    }
+
+    // Searches stop at once; updates already queued still land in (and are saved with) this user's index
+    private void stopSearchIndex() {
+        IndexSession session = indexSession;
+        if (session != null) {
+            indexSession = null;
+            session.executor.execute(() -> saveSearchIndex(session));
+            session.executor.shutdown();
+        }
+    }
+
+    // Called from the EDT and from sync threads
+    private void updateIndex(Consumer<SearchIndex> update) {
+        IndexSession session = indexSession;
+        if (session == null) {
+            return;
         }
+        try {
+            session.executor.execute(() -> {
+                if (session.index != null) {
+                    update.accept(session.index);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Logged out meanwhile
+        }
+    }
+
+    private void indexNote(String fileName, String content, String hash) {
+        updateIndex(index -> index.index(fileName, content, hash));
+    }
+
+    private void indexNoteFile(String fileName, String hash) {
+        File noteFile = new File(notesFolder, fileName);
+        updateIndex(index -> {
+            try {
+                index.index(fileName, noteFile.toPath(), hash);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private void unindexNote(String fileName) {
+        updateIndex(index -> index.remove(fileName));
+    }
+
+    private static void saveSearchIndex(IndexSession session) {
+        try {
+            if (session.index != null) {
+                session.index.saveIfDirty();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void runSearch() {
+        String query = searchField.getText().trim();
+        IndexSession session = indexSession;
+        SearchIndex searchIndex = session == null ? null : session.index;
+        if (query.isEmpty() || searchIndex == null) {
+            noteList.setModel(noteListModel);
+            return;
+        }
+        try {
+            DefaultListModel<String> results = new DefaultListModel<>();
+            for (String fileName : searchIndex.search(query)) {
+                results.addElement(removeExtension(fileName));
+            }
+            noteList.setModel(results);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Called from sync threads; the model itself is only touched on the EDT
+    private void noteAdded(String fileName) {
+        SwingUtilities.invokeLater(() -> noteListModel.add(removeExtension(fileName)));
+    }
+
+    private void noteRemoved(String fileName) {
+        SwingUtilities.invokeLater(() -> noteListModel.remove(removeExtension(fileName)));
     }
 
     private void loadNoteContent() {
+        // Keep whatever was typed into the previous note before the text area is reused
+        autosave.detach();
+        editingNote = null;
         String selectedNote = noteList.getSelectedValue();
         if (selectedNote != null) {
-            File noteFile = new File(notesFolder, addExtension(selectedNote)); // Add .txt for file operations
+            String fileNameWithExt = addExtension(selectedNote); // Add .txt for file operations
+            File noteFile = new File(notesFolder, fileNameWithExt);
+            if (noteFile.length() > LARGE_NOTE_THRESHOLD) {
+                showLargeNote(noteFile);
+                return;
+            }
+            showTextArea();
             try {
-                String content = Files.readString(noteFile.toPath());
+                String content = contentCache.get(fileNameWithExt);
+                if (content == null) {
+                    long start = Metrics.start();
+                    content = Files.readString(noteFile.toPath());
+                    Metrics.record("vault.read", start);
+                    Metrics.count("vault.bytesRead", content.length());
+                    contentCache.put(fileNameWithExt, content);
+                }
+                if (syncManifest.getHash(fileNameWithExt) != null) {
+                    // What we just loaded is what the last sync left, so it can serve as a patch base
+                    serverBaseCache.put(fileNameWithExt, content);
+                }
                 noteContentArea.setText(content);
                 noteContentArea.setEditable(false);
                 saveButton.setEnabled(false);
@@ -275,40 +813,316 @@ public class App extends JFrame {
         }
     }
 
+    private void showLargeNote(File noteFile) {
+        editButton.setEnabled(false);
+        saveButton.setEnabled(false);
+        noteContentArea.setText("");
+        // Mapping and indexing a huge file takes a moment, so do it off the EDT
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return LargeNoteViewer.open(noteFile.toPath());
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }).whenComplete((viewer, error) -> SwingUtilities.invokeLater(() -> {
+            if (error != null) {
+                JOptionPane.showMessageDialog(this, "Error loading note", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            String selected = noteList.getSelectedValue();
+            if (selected == null || !noteFile.getName().equals(addExtension(selected))) {
+                // Selection moved on while we were indexing
+                viewer.close();
+                return;
+            }
+            closeLargeNoteViewer();
+            largeNoteViewer = viewer;
+            noteContentScrollPane.setViewportView(viewer);
+        }));
+    }
+
+    private void showTextArea() {
+        if (largeNoteViewer != null) {
+            closeLargeNoteViewer();
+            noteContentScrollPane.setViewportView(noteContentArea);
+        }
+        editButton.setEnabled(true);
+    }
+
+    private void closeLargeNoteViewer() {
+        if (largeNoteViewer != null) {
+            largeNoteViewer.close();
+            largeNoteViewer = null;
+        }
+    }
+
     private void enableEditing() {
         noteContentArea.setEditable(true);
         saveButton.setEnabled(true);
+        String selectedNote = noteList.getSelectedValue();
+        if (selectedNote != null) {
+            autosave.attach(addExtension(selectedNote));
+            editingNote = addExtension(selectedNote);
+        }
     }
 
     private void saveNoteContent() {
         String selectedNote = noteList.getSelectedValue();
-        if (selectedNote != null) {
+        // Large notes are shown read-only, so the text area does not hold their content
+        if (selectedNote != null && largeNoteViewer == null) {
             try {
+                String fileNameWithExt = addExtension(selectedNote); // Add .txt for file operations
                 String content = noteContentArea.getText();
+                autosave.saved(fileNameWithExt);
+                autosave.detach();
 
                 // Save locally
-                File noteFile = new File(notesFolder, addExtension(selectedNote)); // Add .txt for file operations
-                Files.writeString(noteFile.toPath(), content);
+                writeNoteLocally(fileNameWithExt, content);
 
                 // Sync with server
-                out.writeObject(new FileOperation(OperationType.UPDATE_FILE,
-                        prefs.get(SESSION_KEY, ""), addExtension(selectedNote), content));
-                out.flush();
-
-                FileOperation response = (FileOperation) in.readObject();
-                if ("SUCCESS".equals(response.getContent())) {
-                    JOptionPane.showMessageDialog(this, "Note saved successfully!", "Success",
-                            JOptionPane.INFORMATION_MESSAGE);
+                boolean savedOffline = !connection.isConnected();
+                if (savedOffline) {
+                    JOptionPane.showMessageDialog(this, "Saved locally; it will sync when the server is reachable.",
+                            "Offline", JOptionPane.INFORMATION_MESSAGE);
                     saveButton.setEnabled(false);
                     noteContentArea.setEditable(false);
+                    editingNote = null;
                 }
-            } catch (IOException | ClassNotFoundException e) {
+                uploadNote(fileNameWithExt, content).whenComplete((success, error) -> SwingUtilities.invokeLater(() -> {
+                    if (error != null) {
+                        JOptionPane.showMessageDialog(this, "Error saving note", "Error",
+                                JOptionPane.ERROR_MESSAGE);
+                    } else if (success && !savedOffline) {
+                        JOptionPane.showMessageDialog(this, "Note saved successfully!", "Success",
+                                JOptionPane.INFORMATION_MESSAGE);
+                        // Leave alone whichever other note may be open for editing by now
+                        if (fileNameWithExt.equals(editingNote)) {
+                            saveButton.setEnabled(false);
+                            noteContentArea.setEditable(false);
+                            editingNote = null;
+                        }
+                    }
+                }));
+            } catch (IOException e) {
                 JOptionPane.showMessageDialog(this, "Error saving note", "Error",
                         JOptionPane.ERROR_MESSAGE);
             }
         }
     }
 
+    // Mutations are journaled first and replayed to the server in order, even across restarts
+    private CompletableFuture<FileOperation> sendJournaled(FileOperation op) {
+        if (journal == null) {
+            return sendJournalRecord(notesFolder, op);
+        }
+        return journal.submit(op);
+    }
+
+    // A large note is journaled as "stream this note from disk" (a chunk upload with no chunk), so an edit or
+    // import made offline is uploaded, with whatever the note holds by then, once the server is reachable
+    private static FileOperation streamedUpload(String username, String fileNameWithExt) {
+        return new FileOperation(OperationType.UPDATE_FILE_CHUNK, username, fileNameWithExt, (String) null);
+    }
+
+    // How the journal sends a record: streamed uploads run through chunkedTransfer and are answered as if
+    // the server had replied to them directly; everything else goes out as is
+    private CompletableFuture<FileOperation> sendJournalRecord(File vault, FileOperation op) {
+        if (op.getType() != OperationType.UPDATE_FILE_CHUNK || op.getData() != null) {
+            return sendRequest(op);
+        }
+        return chunkedTransfer.upload(op.getUsername(), op.getFileName(), new File(vault, op.getFileName()).toPath())
+                .handle((done, error) -> {
+                    String status = "SUCCESS";
+                    if (error != null) {
+                        Throwable cause = rootCause(error);
+                        if (cause instanceof ChunkedTransfer.RejectedException) {
+                            status = ((ChunkedTransfer.RejectedException) cause).getResponse();
+                        } else if (!(cause instanceof java.nio.file.NoSuchFileException)) {
+                            // Connection trouble: the journal retries
+                            throw new CompletionException(cause);
+                        }
+                        // NoSuchFileException: deleted locally since; the delete that follows in the journal settles it
+                    }
+                    return new FileOperation(op.getType(), op.getUsername(), op.getFileName(), status);
+                });
+    }
+
+    // The server refused a journaled change for good (it was moved to the dead-letter file), or refuses
+    // this session so changes are piling up; either way the user should know
+    private void reportRejected(FileOperation op, FileOperation response) {
+        String note = op.getFileName() == null || op.getFileName().isEmpty() ? "several notes"
+                : removeExtension(op.getFileName());
+        String message = "UNAUTHORIZED".equals(response.getContent())
+                ? "The sync server did not accept this session. Changes are kept and will be sent once you log in again."
+                : "The sync server rejected a change to " + note + " (" + response.getContent() + "). It will not be"
+                        + " retried; a copy was kept in " + OperationJournal.REJECTED_FILE + ".";
+        SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this, message, "Sync error",
+                JOptionPane.ERROR_MESSAGE));
+    }
+
+    // A replayed patch whose base the server no longer has becomes a full update with what is on disk now
+    private FileOperation staleOperationFallback(FileOperation op) {
+        if (op.getType() != OperationType.UPDATE_FILE_PATCH) {
+            return null;
+        }
+        serverBaseCache.invalidate(op.getFileName());
+        File noteFile = new File(notesFolder, op.getFileName());
+        try {
+            return new FileOperation(OperationType.UPDATE_FILE, op.getUsername(), op.getFileName(),
+                    Files.readString(noteFile.toPath()));
+        } catch (IOException e) {
+            // Deleted locally since; the delete that follows in the journal settles it
+            return null;
+        }
+    }
+
+    // Writes a note to the vault and refreshes everything that tracks its content; safe off the EDT
+    private void writeNoteLocally(String fileNameWithExt, String content) throws IOException {
+        File noteFile = new File(notesFolder, fileNameWithExt);
+        String previous = contentCache.get(fileNameWithExt);
+        long previousModified = noteFile.lastModified();
+        long start = Metrics.start();
+        Files.writeString(noteFile.toPath(), content);
+        Metrics.record("vault.write", start);
+        Metrics.count("vault.bytesWritten", content.length());
+        recordRevision(fileNameWithExt, previous, previousModified, content);
+        contentCache.put(fileNameWithExt, content);
+        String hash = FileData.contentHash(content);
+        syncManifest.put(fileNameWithExt, hash);
+        indexNote(fileNameWithExt, content, hash);
+        syncManifest.save();
+    }
+
+    // A failure here costs history, never the save itself
+    private void recordRevision(String fileNameWithExt, String previous, long previousModified, String content) {
+        RevisionLog history = revisionLog;
+        if (history == null) {
+            return;
+        }
+        try {
+            if (previous != null) {
+                history.recordBaseline(fileNameWithExt, previous, previousModified);
+            }
+            history.record(fileNameWithExt, content);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void forgetRevisions(String fileNameWithExt) {
+        RevisionLog history = revisionLog;
+        if (history != null) {
+            try {
+                history.remove(fileNameWithExt);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Lists the selected note's saved revisions with a preview; restoring one saves it as the newest
+    private void showHistory() {
+        String selectedNote = noteList.getSelectedValue();
+        if (selectedNote == null || revisionLog == null) {
+            return;
+        }
+        String fileNameWithExt = addExtension(selectedNote);
+        if (fileNameWithExt.equals(editingNote)) {
+            JOptionPane.showMessageDialog(this, "Save the note before restoring an older revision", "History",
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        List<RevisionLog.Revision> revisions;
+        try {
+            revisions = revisionLog.list(fileNameWithExt);
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Error loading history", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (revisions.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "No earlier revisions of this note", "History",
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        java.text.DateFormat format = java.text.DateFormat.getDateTimeInstance();
+        DefaultListModel<String> labels = new DefaultListModel<>();
+        for (RevisionLog.Revision revision : revisions) {
+            labels.addElement(format.format(new java.util.Date(revision.timestamp)));
+        }
+        JList<String> revisionList = new JList<>(labels);
+        JTextArea preview = new JTextArea(20, 50);
+        preview.setEditable(false);
+        revisionList.addListSelectionListener(e -> {
+            int index = revisionList.getSelectedIndex();
+            if (!e.getValueIsAdjusting() && index >= 0) {
+                try {
+                    preview.setText(revisionLog.read(fileNameWithExt, revisions.get(index)));
+                    preview.setCaretPosition(0);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    preview.setText("");
+                }
+            }
+        });
+        revisionList.setSelectedIndex(0);
+        JSplitPane panel = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, new JScrollPane(revisionList),
+                new JScrollPane(preview));
+        Object[] options = { "Restore", "Close" };
+        int choice = JOptionPane.showOptionDialog(this, panel, "History of " + selectedNote,
+                JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[1]);
+        if (choice == 0 && revisionList.getSelectedIndex() >= 0) {
+            String content = preview.getText();
+            try {
+                writeNoteLocally(fileNameWithExt, content);
+            } catch (IOException e) {
+                JOptionPane.showMessageDialog(this, "Error restoring note", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            uploadNote(fileNameWithExt, content);
+            loadNoteContent();
+        }
+    }
+
+    // Sends a note's content to the server; large notes are streamed from disk in chunks instead of one message
+    private CompletableFuture<Boolean> uploadNote(String fileNameWithExt, String content) {
+        File noteFile = new File(notesFolder, fileNameWithExt);
+        if (ChunkedTransfer.shouldStream(noteFile.length())) {
+            return sendJournaled(streamedUpload(prefs.get(SESSION_KEY, ""), fileNameWithExt))
+                    .thenApply(response -> "SUCCESS".equals(response.getContent()));
+        }
+        String base = serverBaseCache.get(fileNameWithExt);
+        if (base != null) {
+            FilePatch patch = FilePatch.diff(base, content);
+            // Only worth it when the edit is small next to the note
+            if (patch.payloadSize() * 4 < content.length()) {
+                // On HASH_MISMATCH the journal resends the note in full (see staleOperationFallback)
+                return sendJournaled(new FileOperation(OperationType.UPDATE_FILE_PATCH,
+                        prefs.get(SESSION_KEY, ""), fileNameWithExt, patch))
+                        .thenApply(response -> {
+                            boolean success = "SUCCESS".equals(response.getContent());
+                            if (success) {
+                                serverBaseCache.put(fileNameWithExt, content);
+                            }
+                            return success;
+                        });
+            }
+        }
+        return sendFullUpdate(fileNameWithExt, content);
+    }
+
+    private CompletableFuture<Boolean> sendFullUpdate(String fileNameWithExt, String content) {
+        return sendJournaled(new FileOperation(OperationType.UPDATE_FILE,
+                prefs.get(SESSION_KEY, ""), fileNameWithExt, content))
+                .thenApply(response -> {
+                    boolean success = "SUCCESS".equals(response.getContent());
+                    if (success) {
+                        serverBaseCache.put(fileNameWithExt, content);
+                    }
+                    return success;
+                });
+    }
+
     private void createNewFile() {
         String fileName = JOptionPane.showInputDialog(this, "Enter file name:");
         if (fileName != null && !fileName.trim().isEmpty()) {
@@ -321,28 +1135,116 @@ public class App extends JFrame {
             File newFile = new File(notesFolder, fileNameWithExt);
             try {
                 if (newFile.createNewFile()) {
-                    // Sync with server
-                    out.writeObject(new FileOperation(OperationType.CREATE_FILE,
-                            prefs.get(SESSION_KEY, ""), fileNameWithExt, ""));
-                    out.flush();
-
-                    FileOperation response = (FileOperation) in.readObject();
-                    if ("SUCCESS".equals(response.getContent())) {
-                        updateNoteList();
-                        noteList.setSelectedValue(fileName, true); // Select without extension
-                        noteContentArea.setText("");
-                        enableEditing();
-                    }
+                    syncManifest.put(fileNameWithExt, FileData.contentHash(""));
+                    indexNote(fileNameWithExt, "", FileData.contentHash(""));
+                    syncManifest.save();
+                    noteListModel.add(fileName);
+
+                    // Sync with server; journaled, so the note is usable right away even when offline
+                    sendJournaled(new FileOperation(OperationType.CREATE_FILE,
+                            prefs.get(SESSION_KEY, ""), fileNameWithExt, ""))
+                            .whenComplete((response, error) -> {
+                                if (error != null) {
+                                    error.printStackTrace();
+                                }
+                            });
+                    noteList.setSelectedValue(fileName, true); // Select without extension
+                    noteContentArea.setText("");
+                    enableEditing();
                 } else {
                     JOptionPane.showMessageDialog(this, "File already exists!", "Error",
                             JOptionPane.ERROR_MESSAGE);
                 }
-            } catch (IOException | ClassNotFoundException e) {
+            } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
+    private void importFiles() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setMultiSelectionEnabled(true);
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+
+        String username = prefs.get(SESSION_KEY, "");
+        List<FileOperation> ops = new ArrayList<>();
+        List<CompletableFuture<FileOperation>> uploads = new ArrayList<>();
+        try {
+            for (File source : chooser.getSelectedFiles()) {
+                String fileNameWithExt = addExtension(removeExtension(source.getName()));
+                File target = new File(notesFolder, fileNameWithExt);
+                contentCache.invalidate(fileNameWithExt);
+                OperationType type = target.exists() ? OperationType.UPDATE_FILE : OperationType.CREATE_FILE;
+                if (ChunkedTransfer.shouldStream(source.length())) {
+                    // Large notes are streamed on their own rather than inlined in the batch
+                    Files.copy(source.toPath(), target.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                    noteListModel.add(removeExtension(fileNameWithExt));
+                    indexNoteFile(fileNameWithExt, null);
+                    uploads.add(sendJournaled(streamedUpload(username, fileNameWithExt)));
+                    continue;
+                }
+                String content = Files.readString(source.toPath());
+                Files.writeString(target.toPath(), content);
+                String hash = FileData.contentHash(content);
+                syncManifest.put(fileNameWithExt, hash);
+                indexNote(fileNameWithExt, content, hash);
+                noteListModel.add(removeExtension(fileNameWithExt));
+                ops.add(new FileOperation(type, username, fileNameWithExt, content));
+            }
+            syncManifest.save();
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Error importing files: " + e.getMessage(), "Error",
+                    JOptionPane.ERROR_MESSAGE);
+        }
+
+        CompletableFuture<Integer> failures = sendBatch(username, ops);
+        CompletableFuture.allOf(uploads.toArray(new CompletableFuture<?>[0]))
+                .thenCombine(failures, (done, failed) -> failed
+                        + (int) uploads.stream().filter(upload -> !"SUCCESS".equals(upload.join().getContent())).count())
+                .whenComplete((failed, error) -> SwingUtilities.invokeLater(() -> {
+                    if (error != null || failed > 0) {
+                        String detail = error != null ? rootCause(error).getMessage() : failed + " of them failed";
+                        JOptionPane.showMessageDialog(this, "Some files could not be synced: " + detail, "Error",
+                                JOptionPane.ERROR_MESSAGE);
+                    }
+                }));
+    }
+
+    // Sends create/update/delete operations in as few BATCH messages as possible; completes with the failure count
+    private CompletableFuture<Integer> sendBatch(String username, List<FileOperation> ops) {
+        List<CompletableFuture<Integer>> batches = new ArrayList<>();
+        List<FileOperation> current = new ArrayList<>();
+        long currentBytes = 0;
+        for (FileOperation op : ops) {
+            long size = op.getContent() != null ? op.getContent().length() : 0;
+            if (!current.isEmpty() && currentBytes + size > MAX_BATCH_BYTES) {
+                batches.add(sendSingleBatch(username, current));
+                current = new ArrayList<>();
+                currentBytes = 0;
+            }
+            current.add(op);
+            currentBytes += size;
+        }
+        if (!current.isEmpty()) {
+            batches.add(sendSingleBatch(username, current));
+        }
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0]))
+                .thenApply(done -> batches.stream().mapToInt(CompletableFuture::join).sum());
+    }
+
+    private CompletableFuture<Integer> sendSingleBatch(String username, List<FileOperation> ops) {
+        return sendJournaled(new FileOperation(OperationType.BATCH, username, "", ops))
+                .thenApply(response -> {
+                    if (!(response.getData() instanceof BatchResult)) {
+                        return ops.size();
+                    }
+                    BatchResult result = (BatchResult) response.getData();
+                    return result.getFailureCount() + Math.max(0, ops.size() - result.size());
+                });
+    }
+
     private void deleteSelectedFiles() {
         List<String> selectedNotes = noteList.getSelectedValuesList();
         if (!selectedNotes.isEmpty()) {
@@ -358,7 +1260,15 @@ public class App extends JFrame {
                         File fileToDelete = new File(notesFolder, addExtension(fileName)); // Add .txt for file
                                                                                            // operations
                         fileToDelete.delete();
+                        autosave.discard(addExtension(fileName));
+                        contentCache.invalidate(addExtension(fileName));
+                        serverBaseCache.invalidate(addExtension(fileName));
+                        syncManifest.remove(addExtension(fileName));
+                        unindexNote(addExtension(fileName));
+                        forgetRevisions(addExtension(fileName));
+                        noteListModel.remove(fileName);
                     }
+                    syncManifest.save();
 
                     // Sync with server - convert to list with extensions
                     List<String> fileNamesWithExt = selectedNotes.stream()
@@ -368,13 +1278,16 @@ public class App extends JFrame {
                     FileOperation deleteOp = new FileOperation(OperationType.DELETE_MULTIPLE,
                             prefs.get(SESSION_KEY, ""), "", null);
                     deleteOp.setFileNames(fileNamesWithExt);
-                    out.writeObject(deleteOp);
-                    out.flush();
+                    sendJournaled(deleteOp)
+                            .whenComplete((response, error) -> SwingUtilities.invokeLater(() -> {
+                                if (error != null) {
+                                    JOptionPane.showMessageDialog(this, "Error deleting files", "Error",
+                                            JOptionPane.ERROR_MESSAGE);
+                                }
+                            }));
 
-                    FileOperation response = (FileOperation) in.readObject();
-                    updateNoteList();
                     noteContentArea.setText("");
-                } catch (IOException | ClassNotFoundException e) {
+                } catch (IOException e) {
                     JOptionPane.showMessageDialog(this, "Error deleting files", "Error",
                             JOptionPane.ERROR_MESSAGE);
                 }
@@ -383,8 +1296,30 @@ public class App extends JFrame {
     }
 
     private void logout(String username) {
+        dashboardUser = null;
+        editingNote = null;
+        contentCache.clear();
+        serverBaseCache.clear();
+        stopVaultWatcher();
+        autosave.shutdown();
+        if (journal != null) {
+            // Unsent operations stay on disk and are replayed on the next login
+            journal.close();
+            journal = null;
+        }
+        if (revisionLog != null) {
+            revisionLog.close();
+            revisionLog = null;
+        }
+        stopSearchIndex();
+        closeLargeNoteViewer();
         prefs.remove(SESSION_KEY);
-        deleteFolder(notesFolder);
+        prefs.remove(TOKEN_KEY);
+        connection.setSession(null, null);
+        // Local notes and metadata survive logout so the next session starts warm; opt out on shared machines
+        if (Boolean.getBoolean("jnote.clearOnLogout")) {
+            deleteFolder(notesFolder);
+        }
         getContentPane().removeAll();
         showLoginScreen();
         revalidate();
@@ -408,6 +1343,7 @@ public class App extends JFrame {
     }
 
     public static void main(String[] args) {
+        Metrics.startExport("client");
         SwingUtilities.invokeLater(App::new);
     }
 }
@@ -416,8 +1352,13 @@ class Login extends JPanel {
     private JTextField usernameField;
     private JPasswordField passwordField;
     private JCheckBox showPasswordCheckBox;
+    private JButton loginButton;
 
-    public Login(Connection conn, LoginSuccessCallback callback) {
+    // Checks credentials off the EDT; cancelled if the panel is swapped out mid-attempt
+    private final AuthWorker worker = new AuthWorker();
+    private final AuthStatusPanel statusPanel = new AuthStatusPanel(this::cancelLogin);
+
+    public Login(DataSource dataSource, CredentialCache credentials, LoginSuccessCallback callback) {
         setLayout(new GridBagLayout());
         GridBagConstraints gbc = new GridBagConstraints();
         gbc.insets = new Insets(5, 5, 5, 5);
@@ -439,7 +1380,7 @@ class Login extends JPanel {
 
         showPasswordCheckBox = new JCheckBox("Show Password");
 
-        JButton loginButton = new JButton("Login");
+        loginButton = new JButton("Login");
         loginButton.setPreferredSize(new Dimension(200, 35)); // Made button bigger
 
         gbc.gridx = 0;
@@ -481,6 +1422,10 @@ class Login extends JPanel {
         gbc.anchor = GridBagConstraints.CENTER;
         add(loginButton, gbc);
 
+        gbc.gridy = 7;
+        gbc.fill = GridBagConstraints.HORIZONTAL;
+        add(statusPanel, gbc);
+
         showPasswordCheckBox.addActionListener(e -> {
             if (showPasswordCheckBox.isSelected()) {
                 passwordField.setEchoChar((char) 0);
@@ -495,33 +1440,72 @@ class Login extends JPanel {
 
             if (username.isEmpty() || password.isEmpty()) {
                 JOptionPane.showMessageDialog(this, "Please fill in both fields", "Error", JOptionPane.ERROR_MESSAGE);
+            } else if (credentials.matches(username, password)) {
+                // Accepted moments ago: no need to ask the database again
+                Metrics.count("auth.cacheHits", 1);
+                loginSucceeded(username, password, callback);
             } else {
-                try {
-                    PreparedStatement stmt = conn
-                            .prepareStatement("SELECT * FROM users WHERE username = ? AND password = ?");
-                    stmt.setString(1, username);
-                    stmt.setString(2, password);
-                    ResultSet rs = stmt.executeQuery();
-
-                    if (rs.next()) {
-                        JOptionPane.showMessageDialog(this, "Login successful!", "Success",
-                                JOptionPane.INFORMATION_MESSAGE);
-                        callback.onLoginSuccess(username);
+                setBusy("Checking credentials\u2026");
+                worker.start(attempt -> {
+                    long start = Metrics.start();
+                    try (Connection conn = dataSource.getConnection();
+                            PreparedStatement stmt = conn
+                                    .prepareStatement("SELECT 1 FROM users WHERE username = ? AND password = ?")) {
+                        attempt.track(stmt);
+                        stmt.setString(1, username);
+                        stmt.setString(2, password);
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            return rs.next();
+                        }
+                    } finally {
+                        Metrics.record("db.login", start);
+                    }
+                }, valid -> {
+                    // Connection is back in the pool before the dialogs block
+                    setBusy(null);
+                    if (valid) {
+                        credentials.put(username, password);
+                        loginSucceeded(username, password, callback);
                     } else {
                         JOptionPane.showMessageDialog(this, "Invalid username or password", "Error",
                                 JOptionPane.ERROR_MESSAGE);
                     }
-
-                } catch (SQLException ex) {
-                    ex.printStackTrace();
-                    JOptionPane.showMessageDialog(this, "Database error", "Error", JOptionPane.ERROR_MESSAGE);
-                }
+                }, error -> {
+                    setBusy(null);
+                    AuthWorker.showFailure(this, error);
+                });
             }
         });
     }
 
+    private void loginSucceeded(String username, String password, LoginSuccessCallback callback) {
+        JOptionPane.showMessageDialog(this, "Login successful!", "Success", JOptionPane.INFORMATION_MESSAGE);
+        callback.onLoginSuccess(username, password);
+    }
+
+    private void cancelLogin() {
+        worker.cancel();
+        setBusy(null);
+    }
+
+    // null = idle; the form is locked while the database is being asked so it can't be submitted twice
+    private void setBusy(String status) {
+        boolean idle = status == null;
+        usernameField.setEnabled(idle);
+        passwordField.setEnabled(idle);
+        loginButton.setEnabled(idle);
+        statusPanel.setBusy(status);
+    }
+
+    @Override
+    public void removeNotify() {
+        worker.cancel();
+        super.removeNotify();
+    }
+
+    // The password is passed on so the sync server can check it and issue a session token
     interface LoginSuccessCallback {
-        void onLoginSuccess(String username);
+        void onLoginSuccess(String username, String password);
     }
 }
 
@@ -531,7 +1515,15 @@ class Register extends JPanel {
     private JPasswordField confirmPasswordField;
     private JCheckBox showPasswordCheckBox;
 
-    public Register(Connection conn, Login.LoginSuccessCallback callback) {
+    private JButton registerButton;
+
+    private final ConnectionManager connection;
+    // Checks and creates the account off the EDT; cancelled if the panel is swapped out mid-attempt
+    private final AuthWorker worker = new AuthWorker();
+    private final AuthStatusPanel statusPanel = new AuthStatusPanel(this::cancelRegistration);
+
+    public Register(DataSource dataSource, ConnectionManager connection, Login.LoginSuccessCallback callback) {
+        this.connection = connection;
         setLayout(new GridBagLayout());
         GridBagConstraints gbc = new GridBagConstraints();
         gbc.insets = new Insets(5, 5, 5, 5);
@@ -566,7 +1558,7 @@ class Register extends JPanel {
             }
         });
 
-        JButton registerButton = new JButton("Register");
+        registerButton = new JButton("Register");
         registerButton.setPreferredSize(new Dimension(200, 35));
 
         // Layout components
@@ -623,6 +1615,11 @@ class Register extends JPanel {
         gbc.anchor = GridBagConstraints.CENTER;
         add(registerButton, gbc);
 
+        // Progress while the database is being asked
+        gbc.gridy = 8;
+        gbc.fill = GridBagConstraints.HORIZONTAL;
+        add(statusPanel, gbc);
+
         // Add action listener for register button
         registerButton.addActionListener(e -> {
             String username = usernameField.getText();
@@ -634,43 +1631,81 @@ class Register extends JPanel {
             } else if (!password.equals(confirmPassword)) {
                 JOptionPane.showMessageDialog(this, "Passwords do not match", "Error", JOptionPane.ERROR_MESSAGE);
             } else {
-                try {
-                    PreparedStatement checkUserStmt = conn.prepareStatement("SELECT * FROM users WHERE username = ?");
-                    checkUserStmt.setString(1, username);
-                    ResultSet rs = checkUserStmt.executeQuery();
-
-                    if (rs.next()) {
+                setBusy("Creating account\u2026");
+                worker.start(attempt -> {
+                    long start = Metrics.start();
+                    try (Connection conn = dataSource.getConnection()) {
+                        try (PreparedStatement checkUserStmt = conn
+                                .prepareStatement("SELECT 1 FROM users WHERE username = ?")) {
+                            attempt.track(checkUserStmt);
+                            checkUserStmt.setString(1, username);
+                            try (ResultSet rs = checkUserStmt.executeQuery()) {
+                                if (rs.next()) {
+                                    return false;
+                                }
+                            }
+                        }
+
+                        try (PreparedStatement stmt = conn
+                                .prepareStatement("INSERT INTO users (username, password) VALUES (?, ?)")) {
+                            attempt.track(stmt);
+                            stmt.setString(1, username);
+                            stmt.setString(2, password);
+                            stmt.executeUpdate();
+                        }
+                        return true;
+                    } finally {
+                        Metrics.record("db.register", start);
+                    }
+                }, created -> {
+                    setBusy(null);
+                    if (!created) {
                         JOptionPane.showMessageDialog(this, "Username already exists", "Error",
                                 JOptionPane.ERROR_MESSAGE);
                     } else {
-                        PreparedStatement stmt = conn
-                                .prepareStatement("INSERT INTO users (username, password) VALUES (?, ?)");
-                        stmt.setString(1, username);
-                        stmt.setString(2, password);
-                        stmt.executeUpdate();
-
                         // Notify the server about the new user
                         notifyServer(username);
 
                         JOptionPane.showMessageDialog(this, "Registration successful!", "Success",
                                 JOptionPane.INFORMATION_MESSAGE);
-                        callback.onLoginSuccess(username);
+                        callback.onLoginSuccess(username, password);
                     }
-
-                } catch (SQLException ex) {
-                    ex.printStackTrace();
-                    JOptionPane.showMessageDialog(this, "Database error", "Error", JOptionPane.ERROR_MESSAGE);
-                }
+                }, error -> {
+                    setBusy(null);
+                    AuthWorker.showFailure(this, error);
+                });
             }
         });
     }
 
+    private void cancelRegistration() {
+        worker.cancel();
+        setBusy(null);
+    }
+
+    // null = idle; the form is locked while the database is being asked so it can't be submitted twice
+    private void setBusy(String status) {
+        boolean idle = status == null;
+        usernameField.setEnabled(idle);
+        passwordField.setEnabled(idle);
+        confirmPasswordField.setEnabled(idle);
+        registerButton.setEnabled(idle);
+        statusPanel.setBusy(status);
+    }
+
+    @Override
+    public void removeNotify() {
+        worker.cancel();
+        super.removeNotify();
+    }
+
+    // Over the shared connection; the server creates the user's storage on first use anyway, so a lost notice is harmless
     private void notifyServer(String username) {
-        try (Socket socket = new Socket("localhost", 12345);
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            out.println(username);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        connection.submit(new FileOperation(OperationType.USER_REGISTERED, username, "", null))
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        error.printStackTrace();
+                    }
+                });
     }
 }
\ No newline at end of file
@@ -0,0 +1,165 @@
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Runs the login and registration database work off the Event Dispatch Thread, so a slow database shows
+// up as a progress indicator rather than a frozen window. One attempt per panel at a time; each has a
+// deadline (-Djnote.auth.timeoutSeconds, default 10) and can be cancelled. Cancelling or timing out
+// interrupts a wait for a pooled connection and cancels the running statement. Results, including
+// failures, are delivered on the EDT, and never for an attempt that was cancelled or superseded.
+class AuthWorker {
+    static final int TIMEOUT_SECONDS = Integer.getInteger("jnote.auth.timeoutSeconds", 10);
+    // One attempt per panel plus the startup check, with room for one stuck past its deadline
+    private static final int THREADS = 4;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ExecutorService executor = Executors.newFixedThreadPool(THREADS, AuthWorker::newThread);
+    // Cancels get their own thread so they never queue behind the work they are meant to stop
+    private static final ExecutorService canceller = Executors.newSingleThreadExecutor(AuthWorker::newThread);
+
+    private static Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "jnote-auth-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    interface Task<T> {
+        T run(Attempt attempt) throws SQLException;
+    }
+
+    // Handed to the task so the statement it runs can be bounded and cancelled
+    static class Attempt {
+        private volatile Statement statement;
+        private volatile boolean cancelled;
+        private volatile Future<?> future;
+
+        void track(Statement statement) throws SQLException {
+            statement.setQueryTimeout(TIMEOUT_SECONDS);
+            this.statement = statement;
+            if (cancelled) {
+                throw new SQLException("Cancelled");
+            }
+        }
+
+        private void cancel() {
+            cancelled = true;
+            Future<?> running = future;
+            if (running != null) {
+                running.cancel(true);
+            }
+            Statement current = statement;
+            if (current != null) {
+                try {
+                    current.cancel();
+                } catch (SQLException e) {
+                    // Already finished or closed
+                }
+            }
+        }
+    }
+
+    private Attempt current;
+
+    // Must be called on the EDT; replaces (and cancels) any attempt still running
+    public <T> void start(Task<T> task, Consumer<T> onSuccess, Consumer<Throwable> onFailure) {
+        cancel();
+        Attempt attempt = new Attempt();
+        current = attempt;
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt.future = executor.submit(() -> {
+            try {
+                result.complete(task.run(attempt));
+            } catch (SQLException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        result.orTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS).whenComplete((value, error) -> {
+            if (error != null) {
+                // Stop the database work too, not just the wait for it; statement cancel may block briefly
+                canceller.execute(attempt::cancel);
+            }
+            SwingUtilities.invokeLater(() -> {
+                if (current != attempt) {
+                    return;
+                }
+                current = null;
+                if (error == null) {
+                    onSuccess.accept(value);
+                } else {
+                    onFailure.accept(error instanceof CompletionException && error.getCause() != null
+                            ? error.getCause() : error);
+                }
+            });
+        });
+    }
+
+    // Must be called on the EDT; the cancelled attempt reports nothing
+    public void cancel() {
+        Attempt attempt = current;
+        current = null;
+        if (attempt != null) {
+            canceller.execute(attempt::cancel);
+        }
+    }
+
+    public boolean isRunning() {
+        return current != null;
+    }
+
+    // The dialogs the panels have always shown, plus one for a database that didn't answer in time
+    static void showFailure(Component parent, Throwable error) {
+        error.printStackTrace();
+        if (error instanceof TimeoutException || error instanceof SQLTimeoutException) {
+            JOptionPane.showMessageDialog(parent, "The database did not respond in time. Please try again.",
+                    "Error", JOptionPane.ERROR_MESSAGE);
+        } else {
+            JOptionPane.showMessageDialog(parent, "Database error", "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+}
+
+// What the login and register panels show while an AuthWorker attempt runs: a busy bar, what is
+// being waited on, and a way to give up. Only the (blank) status line stays when idle.
+class AuthStatusPanel extends JPanel {
+    private final JProgressBar progressBar = new JProgressBar();
+    private final JLabel statusLabel = new JLabel(" ", SwingConstants.CENTER);
+    private final JButton cancelButton = new JButton("Cancel");
+
+    AuthStatusPanel(Runnable onCancel) {
+        super(new BorderLayout(5, 5));
+        progressBar.setIndeterminate(true);
+        progressBar.setPreferredSize(new Dimension(200, 12));
+        cancelButton.addActionListener(e -> onCancel.run());
+        add(statusLabel, BorderLayout.NORTH);
+        add(progressBar, BorderLayout.CENTER);
+        add(cancelButton, BorderLayout.EAST);
+        setBusy(null);
+    }
+
+    // null = idle
+    void setBusy(String status) {
+        boolean busy = status != null;
+        statusLabel.setText(busy ? status : " ");
+        progressBar.setVisible(busy);
+        cancelButton.setVisible(busy);
+    }
+}
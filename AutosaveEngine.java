@@ -0,0 +1,171 @@
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+// Autosave for the note being edited.
+// Keystrokes restart a short debounce timer; when typing pauses, the text is snapshotted on the EDT
+// and written locally on a background thread. Server updates are coalesced: at most one per note per
+// interval, always carrying the newest content. Only an update that never got an answer is retried;
+// one the server refused is reported once per note and left to the next edit.
+class AutosaveEngine implements DocumentListener {
+    static final int DEBOUNCE_MILLIS = 750;
+    static final long SERVER_INTERVAL_SECONDS = 5;
+
+    private final JTextArea textArea;
+    private final BiConsumer<String, String> localWriter;
+    private final BiFunction<String, String, CompletableFuture<Boolean>> serverWriter;
+    // Told the note's name, on whichever thread the answer arrives, the first time the server refuses it
+    private final Consumer<String> refusedHandler;
+    private final Timer debounce;
+    private final ExecutorService writer;
+    private final ScheduledExecutorService scheduler;
+    // Latest unsent content per note; guarded by itself
+    private final Map<String, String> pendingServer = new LinkedHashMap<>();
+    // Notes whose last update the server refused; also guarded by pendingServer
+    private final Set<String> refused = new HashSet<>();
+    private String currentNote;
+
+    public AutosaveEngine(JTextArea textArea, BiConsumer<String, String> localWriter,
+            BiFunction<String, String, CompletableFuture<Boolean>> serverWriter, Consumer<String> refusedHandler) {
+        this.textArea = textArea;
+        this.localWriter = localWriter;
+        this.serverWriter = serverWriter;
+        this.refusedHandler = refusedHandler;
+        this.debounce = new Timer(DEBOUNCE_MILLIS, e -> saveLocally());
+        this.debounce.setRepeats(false);
+        ThreadFactory threads = runnable -> {
+            Thread thread = new Thread(runnable, "jnote-autosave");
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.writer = Executors.newSingleThreadExecutor(threads);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(threads);
+        this.scheduler.scheduleWithFixedDelay(this::flushServer, SERVER_INTERVAL_SECONDS, SERVER_INTERVAL_SECONDS,
+                TimeUnit.SECONDS);
+        textArea.getDocument().addDocumentListener(this);
+    }
+
+    // Start autosaving edits to this note (EDT only)
+    public void attach(String fileName) {
+        detach();
+        currentNote = fileName;
+    }
+
+    // Save anything typed so far and stop tracking the current note (EDT only)
+    public void detach() {
+        if (currentNote != null && debounce.isRunning()) {
+            debounce.stop();
+            saveLocally();
+        }
+        currentNote = null;
+    }
+
+    // The user saved explicitly: drop queued work for this note, it has just been sent in full
+    public void saved(String fileName) {
+        if (fileName.equals(currentNote)) {
+            debounce.stop();
+        }
+        synchronized (pendingServer) {
+            pendingServer.remove(fileName);
+        }
+    }
+
+    // The note is going away (deleted): forget it without saving
+    public void discard(String fileName) {
+        if (fileName.equals(currentNote)) {
+            debounce.stop();
+            currentNote = null;
+        }
+        synchronized (pendingServer) {
+            pendingServer.remove(fileName);
+        }
+    }
+
+    public void shutdown() {
+        detach();
+        textArea.getDocument().removeDocumentListener(this);
+        writer.execute(this::flushServer);
+        writer.shutdown();
+        scheduler.shutdown();
+        try {
+            // The last flush hands its updates to the journal, which the caller closes next
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        edited();
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        edited();
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+        // Attribute changes only; plain text has none worth saving
+    }
+
+    private void edited() {
+        // setText() while loading another note also fires events, but the area isn't editable then
+        if (currentNote != null && textArea.isEditable()) {
+            debounce.restart();
+        }
+    }
+
+    private void saveLocally() {
+        String fileName = currentNote;
+        if (fileName == null) {
+            return;
+        }
+        String content = textArea.getText();
+        writer.execute(() -> {
+            localWriter.accept(fileName, content);
+            synchronized (pendingServer) {
+                pendingServer.put(fileName, content);
+            }
+        });
+    }
+
+    private void flushServer() {
+        Map<String, String> batch;
+        synchronized (pendingServer) {
+            if (pendingServer.isEmpty()) {
+                return;
+            }
+            batch = new LinkedHashMap<>(pendingServer);
+            pendingServer.clear();
+        }
+        for (Map.Entry<String, String> entry : batch.entrySet()) {
+            String fileName = entry.getKey();
+            serverWriter.apply(fileName, entry.getValue()).whenComplete((ok, error) -> {
+                synchronized (pendingServer) {
+                    if (error != null) {
+                        // Never got there: requeue unless a newer edit has already taken its place
+                        pendingServer.putIfAbsent(fileName, entry.getValue());
+                    } else if (!Boolean.TRUE.equals(ok)) {
+                        // Refused; sending the same content again would only be refused again
+                        if (refused.add(fileName)) {
+                            refusedHandler.accept(fileName);
+                        }
+                    } else {
+                        refused.remove(fileName);
+                    }
+                }
+            });
+        }
+    }
+}
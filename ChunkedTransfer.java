@@ -0,0 +1,190 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+// Streams large notes in fixed-size chunks so neither side ever holds a whole note in memory.
+// Uploads go out as UPDATE_FILE_CHUNK and are acked with the server's next expected offset. Their
+// transfer id is derived from user, note and content, so a retry after a dropped connection asks the
+// server how far it got and carries on from there. Downloads pull FILE_CHUNK_REQUEST slices into a
+// .part file that survives interruptions.
+class ChunkedTransfer {
+    static final int CHUNK_SIZE = 256 * 1024;
+    static final long STREAMING_THRESHOLD = 1024 * 1024;
+    private static final int MAX_RETRIES = 3;
+    private static final long CHUNK_TIMEOUT_SECONDS = 60;
+
+    private final Function<FileOperation, CompletableFuture<FileOperation>> requests;
+    // Transfers block on their own acks, so they must never run on the pipeline's callback thread
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "jnote-transfer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // The server answered, but refused the transfer; unlike a lost connection, trying again won't help
+    static class RejectedException extends IOException {
+        private final String response;
+
+        RejectedException(String message, String response) {
+            super(message);
+            this.response = response;
+        }
+
+        // The server's status, e.g. FAILED or UNAUTHORIZED
+        public String getResponse() {
+            return response;
+        }
+    }
+
+    public ChunkedTransfer(Function<FileOperation, CompletableFuture<FileOperation>> requests) {
+        this.requests = requests;
+    }
+
+    public static boolean shouldStream(long size) {
+        return size > STREAMING_THRESHOLD;
+    }
+
+    public CompletableFuture<Void> upload(String username, String fileName, Path source) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                doUpload(username, fileName, source);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, worker);
+    }
+
+    public CompletableFuture<Void> download(String username, FileData fileData, Path target) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                doDownload(username, fileData, target);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, worker);
+    }
+
+    private void doUpload(String username, String fileName, Path source) throws IOException {
+        String transferId = transferId(username, fileName, SyncManifest.hashFile(source));
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            long totalSize = channel.size();
+            // A chunk without bytes asks where an earlier attempt at this transfer got to (0 if nowhere)
+            FileChunk progress = await(new FileOperation(OperationType.UPDATE_FILE_CHUNK, username, fileName,
+                    new FileChunk(transferId, 0, totalSize, null, 0)));
+            long offset = progress.getOffset() <= totalSize ? progress.getOffset() : 0;
+            int retries = 0;
+            do {
+                buffer.clear();
+                int read = channel.read(buffer, offset);
+                byte[] bytes = new byte[Math.max(read, 0)];
+                buffer.flip();
+                buffer.get(bytes);
+
+                FileChunk chunk = new FileChunk(transferId, offset, totalSize, bytes, crc(bytes));
+                FileChunk ack = await(new FileOperation(OperationType.UPDATE_FILE_CHUNK, username, fileName, chunk));
+
+                // The server answers with the next offset it wants: ahead when resuming, same on a bad checksum
+                if (ack.getOffset() <= offset) {
+                    if (++retries > MAX_RETRIES) {
+                        throw new RejectedException("Server rejected chunk at offset " + offset + " of " + fileName,
+                                "FAILED");
+                    }
+                } else {
+                    retries = 0;
+                }
+                offset = ack.getOffset();
+            } while (offset < totalSize);
+        }
+    }
+
+    private void doDownload(String username, FileData fileData, Path target) throws IOException {
+        String fileName = fileData.getFileName();
+        Path part = target.resolveSibling(target.getFileName() + ".part");
+        MessageDigest digest = sha256();
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ)) {
+            // Resume after what is already on disk, re-hashing it so the final check still covers every byte
+            long offset = Math.min(channel.size(), fileData.getSize());
+            channel.truncate(offset);
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            for (long position = 0; position < offset;) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read <= 0) {
+                    break;
+                }
+                digest.update(buffer.array(), 0, read);
+                position += read;
+            }
+
+            int retries = 0;
+            while (offset < fileData.getSize()) {
+                FileChunk request = new FileChunk(null, offset, fileData.getSize(), null, 0);
+                FileChunk chunk = await(new FileOperation(OperationType.FILE_CHUNK_REQUEST, username, fileName, request));
+                byte[] bytes = chunk.getBytes();
+                if (bytes == null || bytes.length == 0 || chunk.getOffset() != offset || crc(bytes) != chunk.getChecksum()) {
+                    if (++retries > MAX_RETRIES) {
+                        throw new IOException("Corrupt chunk at offset " + offset + " of " + fileName);
+                    }
+                    continue;
+                }
+                retries = 0;
+                channel.write(ByteBuffer.wrap(bytes), offset);
+                digest.update(bytes);
+                offset += bytes.length;
+            }
+            channel.force(false);
+        }
+
+        String hash = FileData.toHex(digest.digest());
+        if (fileData.getHash() != null && !fileData.getHash().equals(hash)) {
+            Files.deleteIfExists(part);
+            throw new IOException("Hash mismatch after download of " + fileName);
+        }
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private FileChunk await(FileOperation op) throws IOException {
+        try {
+            FileOperation response = requests.apply(op).get(CHUNK_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (!(response.getData() instanceof FileChunk)) {
+                throw new RejectedException("Unexpected response to " + op.getType() + ": " + response.getContent(),
+                        response.getContent());
+            }
+            return (FileChunk) response.getData();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Transfer interrupted", e);
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IOException("Chunk request failed", e);
+        }
+    }
+
+    // Same note, same content, same id: hex so it is safe as the server's temp file name
+    static String transferId(String username, String fileName, String contentHash) {
+        MessageDigest digest = sha256();
+        digest.update((username + "\0" + fileName + "\0" + contentHash).getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        return FileData.toHex(digest.digest()).substring(0, 32);
+    }
+
+    private static long crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
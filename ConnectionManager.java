@@ -0,0 +1,241 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// Owns the one connection to the sync server that all traffic shares.
+// If it drops, it is re-established in the background with exponential backoff; while it is down,
+// submit() fails fast and callers (mostly the operation journal) retry once it is back. An idle
+// connection is probed with heartbeats so a dead peer is noticed without waiting for a write.
+class ConnectionManager {
+    static final String DEFAULT_HOST = "localhost";
+    static final int DEFAULT_PORT = 12345;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5_000;
+    private static final long MIN_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    private static final long HEARTBEAT_INTERVAL_SECONDS = 15;
+    private static final long HEARTBEAT_TIMEOUT_SECONDS = 10;
+
+    private final String host;
+    private final int port;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "jnote-connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile RequestPipeline pipeline;
+    private volatile Consumer<FileOperation> unsolicitedHandler = op -> {
+    };
+    private volatile Runnable connectedHandler = () -> {
+    };
+    // Presented first on every connection, so the server knows who the following requests come from
+    private volatile String sessionUser;
+    private volatile String sessionToken;
+    // Held only until the server has issued a token for it, so a login made offline still gets one
+    private volatile String pendingPassword;
+    private volatile BiConsumer<String, String> tokenHandler = (user, token) -> {
+    };
+    private volatile Consumer<String> rejectedHandler = user -> {
+    };
+    private volatile long lastActivity;
+    private long backoffMillis;
+    private volatile boolean closed;
+
+    public ConnectionManager(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    // Server address from -Djnote.server.host / -Djnote.server.port
+    public static ConnectionManager fromSystemProperties() {
+        return new ConnectionManager(System.getProperty("jnote.server.host", DEFAULT_HOST),
+                Integer.getInteger("jnote.server.port", DEFAULT_PORT));
+    }
+
+    // Connects in the background; returns immediately
+    public void start() {
+        scheduler.execute(this::connect);
+        scheduler.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_INTERVAL_SECONDS, HEARTBEAT_INTERVAL_SECONDS,
+                TimeUnit.SECONDS);
+    }
+
+    // Server pushes; kept across reconnects
+    public void setUnsolicitedHandler(Consumer<FileOperation> handler) {
+        this.unsolicitedHandler = handler;
+        RequestPipeline current = pipeline;
+        if (current != null) {
+            current.setUnsolicitedHandler(handler);
+        }
+    }
+
+    // Runs on the connection thread after every successful (re)connect
+    public void setConnectedHandler(Runnable handler) {
+        this.connectedHandler = handler;
+    }
+
+    // Told (user, token) on the connection thread whenever the server issues a token after login()
+    public void setTokenHandler(BiConsumer<String, String> handler) {
+        this.tokenHandler = handler;
+    }
+
+    // Told the user on the connection thread when the server turns down their session or login
+    public void setRejectedHandler(Consumer<String> handler) {
+        this.rejectedHandler = handler;
+    }
+
+    // Resumes a session with a token the server issued earlier, or with none if it never issued one (a
+    // server that requires sessions then rejects it); null user and token on logout.
+    // Authenticates the current connection straight away if there is one.
+    public void setSession(String username, String token) {
+        this.sessionUser = username;
+        this.sessionToken = token;
+        this.pendingPassword = null;
+        RequestPipeline current = pipeline;
+        if (username != null && current != null && !current.isClosed()) {
+            authenticate(current);
+        }
+    }
+
+    // Starts a session from a password: the server checks it and issues the token, now if connected,
+    // otherwise on the next connection
+    public void login(String username, String password) {
+        this.sessionUser = username;
+        this.sessionToken = null;
+        this.pendingPassword = password;
+        RequestPipeline current = pipeline;
+        if (current != null && !current.isClosed()) {
+            login(current);
+        }
+    }
+
+    public boolean isConnected() {
+        RequestPipeline current = pipeline;
+        return current != null && !current.isClosed();
+    }
+
+    public CompletableFuture<FileOperation> submit(FileOperation op) {
+        RequestPipeline current = pipeline;
+        if (current == null || current.isClosed()) {
+            return CompletableFuture.failedFuture(new IOException("Not connected to server"));
+        }
+        lastActivity = System.nanoTime();
+        return current.submit(op);
+    }
+
+    public void close() {
+        closed = true;
+        scheduler.shutdownNow();
+        RequestPipeline current = pipeline;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    private void connect() {
+        if (closed || isConnected()) {
+            return;
+        }
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            // A server that accepts but never answers the handshake must not hold this (only) thread forever
+            socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+            MessageChannel channel = MessageChannel.open(socket.getInputStream(), socket.getOutputStream());
+            // From here on a quiet connection is normal; heartbeats notice a dead one
+            socket.setSoTimeout(0);
+            RequestPipeline connected = new RequestPipeline(channel);
+            connected.setUnsolicitedHandler(unsolicitedHandler);
+            connected.setCloseHandler(() -> disconnected(connected));
+            pipeline = connected;
+            lastActivity = System.nanoTime();
+            backoffMillis = 0;
+            // Requests are answered in order, so whatever the handler sends is covered by this
+            if (pendingPassword != null) {
+                login(connected);
+            } else if (sessionUser != null) {
+                authenticate(connected);
+            }
+            connectedHandler.run();
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Nothing was opened
+            }
+            scheduleReconnect();
+        }
+    }
+
+    private void authenticate(RequestPipeline target) {
+        String user = sessionUser;
+        target.submit(new FileOperation(OperationType.AUTHENTICATE, user, "", sessionToken))
+                .whenComplete((response, error) -> {
+                    if (error == null && !"SUCCESS".equals(response.getContent()) && user.equals(sessionUser)) {
+                        rejectedHandler.accept(user);
+                    }
+                });
+    }
+
+    private void login(RequestPipeline target) {
+        String user = sessionUser;
+        String password = pendingPassword;
+        if (user == null || password == null) {
+            return;
+        }
+        target.submit(new FileOperation(OperationType.LOGIN, user, "", password))
+                .whenComplete((response, error) -> {
+                    // Lost connection: keep the password for the next one. Superseded by logout or another login: drop it
+                    if (error != null || !user.equals(sessionUser) || password != pendingPassword) {
+                        return;
+                    }
+                    pendingPassword = null;
+                    if (!"SUCCESS".equals(response.getContent())) {
+                        rejectedHandler.accept(user);
+                    } else if (response.getData() instanceof SessionGrant) {
+                        // Null data: the server doesn't require sessions, so there is no token to keep
+                        sessionToken = ((SessionGrant) response.getData()).getToken();
+                        tokenHandler.accept(user, sessionToken);
+                    }
+                });
+    }
+
+    private void disconnected(RequestPipeline broken) {
+        if (pipeline == broken && !closed) {
+            try {
+                scheduler.execute(this::scheduleReconnect);
+            } catch (RejectedExecutionException e) {
+                // Closing down
+            }
+        }
+    }
+
+    // Exponential backoff with jitter, so a restarted server isn't hit by every desktop at once
+    private void scheduleReconnect() {
+        if (closed) {
+            return;
+        }
+        backoffMillis = Math.min(MAX_BACKOFF_MILLIS, Math.max(MIN_BACKOFF_MILLIS, backoffMillis * 2));
+        long delay = backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+        scheduler.schedule(this::connect, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void heartbeat() {
+        RequestPipeline current = pipeline;
+        if (current == null || current.isClosed()
+                || System.nanoTime() - lastActivity < TimeUnit.SECONDS.toNanos(HEARTBEAT_INTERVAL_SECONDS)) {
+            return;
+        }
+        lastActivity = System.nanoTime();
+        current.submit(new FileOperation(OperationType.HEARTBEAT, "", "", null))
+                .orTimeout(HEARTBEAT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .whenComplete((response, error) -> {
+                    if (error != null && !current.isClosed()) {
+                        // No answer: treat the connection as dead; the close handler reconnects
+                        current.close();
+                    }
+                });
+    }
+}
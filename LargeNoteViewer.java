@@ -0,0 +1,168 @@
+import javax.swing.*;
+import java.awt.*;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Read-only view of a very large note. The file is memory-mapped and indexed by line start offsets,
+// and only the lines inside the visible rectangle are decoded and painted, so opening a note costs
+// one scan for newlines instead of a full PlainDocument.
+class LargeNoteViewer extends JComponent implements Scrollable, AutoCloseable {
+    private static final long SEGMENT_SIZE = 1L << 30;
+    private static final int MAX_LINE_CHARS = 4096;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final long fileSize;
+    private long[] lineOffsets = new long[1024];
+    private int lineCount;
+    private int lineHeight;
+    private int ascent;
+    private int charWidth;
+    private int longestLine;
+
+    private LargeNoteViewer(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        fileSize = channel.size();
+        int segmentCount = (int) Math.max(1, (fileSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        segments = new MappedByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long start = i * SEGMENT_SIZE;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, fileSize - start));
+        }
+        buildLineIndex();
+
+        setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        setBackground(Color.WHITE);
+        setOpaque(true);
+    }
+
+    // Maps and indexes the file; callers should run this off the EDT
+    public static LargeNoteViewer open(Path path) throws IOException {
+        return new LargeNoteViewer(path);
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    private void buildLineIndex() {
+        lineOffsets[lineCount++] = 0;
+        long lineStart = 0;
+        byte[] block = new byte[64 * 1024];
+        for (int s = 0; s < segments.length; s++) {
+            MappedByteBuffer segment = segments[s];
+            int limit = segment.limit();
+            for (int blockStart = 0; blockStart < limit; blockStart += block.length) {
+                int blockLength = Math.min(block.length, limit - blockStart);
+                segment.get(blockStart, block, 0, blockLength);
+                long base = s * SEGMENT_SIZE + blockStart;
+                for (int i = 0; i < blockLength; i++) {
+                    if (block[i] != '\n') {
+                        continue;
+                    }
+                    long next = base + i + 1;
+                    longestLine = (int) Math.max(longestLine, Math.min(next - lineStart, MAX_LINE_CHARS));
+                    lineStart = next;
+                    if (next < fileSize) {
+                        if (lineCount == lineOffsets.length) {
+                            lineOffsets = Arrays.copyOf(lineOffsets, lineOffsets.length * 2);
+                        }
+                        lineOffsets[lineCount++] = next;
+                    }
+                }
+            }
+        }
+        longestLine = (int) Math.max(longestLine, Math.min(fileSize - lineStart, MAX_LINE_CHARS));
+    }
+
+    private String lineAt(int line) {
+        long start = lineOffsets[line];
+        long end = line + 1 < lineCount ? lineOffsets[line + 1] : fileSize;
+        // Long lines are cut off rather than decoded in full
+        int length = (int) Math.min(end - start, MAX_LINE_CHARS);
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            long position = start + i;
+            bytes[i] = segments[(int) (position / SEGMENT_SIZE)].get((int) (position % SEGMENT_SIZE));
+        }
+        while (length > 0 && (bytes[length - 1] == '\n' || bytes[length - 1] == '\r')) {
+            length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void updateMetrics() {
+        FontMetrics metrics = getFontMetrics(getFont());
+        lineHeight = metrics.getHeight();
+        ascent = metrics.getAscent();
+        charWidth = metrics.charWidth('m');
+    }
+
+    @Override
+    public void setFont(Font font) {
+        super.setFont(font);
+        updateMetrics();
+        revalidate();
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        long height = (long) lineCount * lineHeight;
+        return new Dimension(longestLine * charWidth + 8, (int) Math.min(height, Integer.MAX_VALUE));
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Rectangle clip = g.getClipBounds();
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        g.setColor(getForeground());
+        g.setFont(getFont());
+
+        int first = Math.max(0, clip.y / lineHeight);
+        int last = Math.min(lineCount - 1, (clip.y + clip.height) / lineHeight);
+        for (int line = first; line <= last; line++) {
+            g.drawString(lineAt(line), 4, line * lineHeight + ascent);
+        }
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? lineHeight : charWidth;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? visibleRect.height - lineHeight : visibleRect.width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return false;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        // Mapped buffers are released by the GC; closing the channel frees the file handle
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
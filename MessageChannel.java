@@ -0,0 +1,566 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// One request/response channel over a socket's streams.
+// The wire format is picked with -Djnote.codec=binary (default) or -Djnote.codec=java.
+interface MessageChannel extends Closeable {
+    void send(FileOperation op) throws IOException;
+
+    FileOperation receive() throws IOException, ClassNotFoundException;
+
+    static MessageChannel open(InputStream in, OutputStream out) throws IOException {
+        if ("java".equalsIgnoreCase(System.getProperty("jnote.codec", "binary"))) {
+            return new ObjectStreamChannel(in, out);
+        }
+        return new BinaryChannel(in, out);
+    }
+}
+
+// Fallback: plain Java serialization, compatible with the original protocol
+class ObjectStreamChannel implements MessageChannel {
+    private final ObjectOutputStream out;
+    private final ObjectInputStream in;
+
+    public ObjectStreamChannel(InputStream in, OutputStream out) throws IOException {
+        this.out = new ObjectOutputStream(out);
+        this.out.flush();
+        this.in = new ObjectInputStream(in);
+    }
+
+    @Override
+    public void send(FileOperation op) throws IOException {
+        out.writeObject(op);
+        out.flush();
+        // Drop back-references so the stream doesn't pin every message ever sent
+        out.reset();
+    }
+
+    @Override
+    public FileOperation receive() throws IOException, ClassNotFoundException {
+        return (FileOperation) in.readObject();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+        in.close();
+    }
+}
+
+// Length-prefixed frames: [int length][byte flags][payload], payload encoded by BinaryCodec.
+// On open both ends send [int magic][byte features] and use the features both support, so
+// the handshake is symmetric and works the same from the client and the server.
+// With FEATURE_DEFLATE agreed, payloads of COMPRESSION_THRESHOLD bytes or more are deflated
+// independently per frame against a shared preset dictionary of common note text.
+class BinaryChannel implements MessageChannel {
+    static final int HANDSHAKE_MAGIC = 0x4A4E4F54; // "JNOT"
+    static final int HANDSHAKE_SIZE = 5;
+    static final byte FEATURE_DEFLATE = 1;
+    private static final byte FLAG_DEFLATED = 1;
+    static final int COMPRESSION_THRESHOLD = 512;
+    private static final byte[] DICTIONARY = (" the and to of a in is it that for you this on with be are as"
+            + " was have not at or but from by we they an will can if all my so meeting notes todo done"
+            + " project review update team next week today tomorrow monday tuesday wednesday thursday friday"
+            + " http://https://www..com\n- [ ] - [x] * TODO: NOTE: ").getBytes(StandardCharsets.UTF_8);
+
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final boolean compress;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+
+    public BinaryChannel(InputStream in, OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.in = new DataInputStream(new BufferedInputStream(in));
+
+        byte offered = offeredFeatures();
+        this.out.writeInt(HANDSHAKE_MAGIC);
+        this.out.writeByte(offered);
+        this.out.flush();
+        if (this.in.readInt() != HANDSHAKE_MAGIC) {
+            throw new IOException("Peer did not answer the binary protocol handshake");
+        }
+        byte agreed = (byte) (offered & this.in.readByte());
+        this.compress = (agreed & FEATURE_DEFLATE) != 0;
+    }
+
+    public boolean isCompressing() {
+        return compress;
+    }
+
+    static byte offeredFeatures() {
+        return Boolean.parseBoolean(System.getProperty("jnote.compression", "true")) ? FEATURE_DEFLATE : 0;
+    }
+
+    @Override
+    public synchronized void send(FileOperation op) throws IOException {
+        out.write(frame(op, compress ? deflater : null));
+        out.flush();
+    }
+
+    @Override
+    public FileOperation receive() throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length > BinaryCodec.MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return unframe(body, inflater);
+    }
+
+    // A complete frame, length prefix included; deflater is null when compression was not agreed.
+    // Shared with the NIO server, which frames and unframes buffers rather than streams.
+    static byte[] frame(FileOperation op, Deflater deflater) throws IOException {
+        long start = Metrics.start();
+        byte[] frame = encodeFrame(op, deflater);
+        Metrics.record("codec.frame", start);
+        Metrics.count("net.messagesOut", 1);
+        Metrics.count("net.bytesOut", frame.length);
+        return frame;
+    }
+
+    private static byte[] encodeFrame(FileOperation op, Deflater deflater) throws IOException {
+        byte[] payload = BinaryCodec.encode(op);
+        if (deflater != null && payload.length >= COMPRESSION_THRESHOLD) {
+            byte[] deflated = deflate(deflater, payload);
+            // Incompressible payloads go raw
+            if (deflated.length + 4 < payload.length) {
+                ByteArrayOutputStream frame = new ByteArrayOutputStream(deflated.length + 9);
+                DataOutputStream out = new DataOutputStream(frame);
+                out.writeInt(deflated.length + 5);
+                out.writeByte(FLAG_DEFLATED);
+                out.writeInt(payload.length);
+                out.write(deflated);
+                return frame.toByteArray();
+            }
+        }
+        byte[] frame = new byte[payload.length + 5];
+        int length = payload.length + 1;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        System.arraycopy(payload, 0, frame, 5, payload.length);
+        return frame;
+    }
+
+    // body is everything after the length prefix: [flags][payload]
+    static FileOperation unframe(byte[] body, Inflater inflater) throws IOException {
+        return unframe(body, inflater, BinaryCodec.MAX_FRAME_SIZE);
+    }
+
+    // maxPayload bounds what a compressed frame may claim to inflate to, so the NIO server can hold
+    // untrusted peers to the same limit it applies to frames on the wire
+    static FileOperation unframe(byte[] body, Inflater inflater, int maxPayload) throws IOException {
+        long start = Metrics.start();
+        FileOperation op = decodeFrame(body, inflater, maxPayload);
+        Metrics.record("codec.unframe", start);
+        Metrics.count("net.messagesIn", 1);
+        Metrics.count("net.bytesIn", body.length + 4);
+        return op;
+    }
+
+    private static FileOperation decodeFrame(byte[] body, Inflater inflater, int maxPayload) throws IOException {
+        if (body.length < 1) {
+            throw new IOException("Empty frame");
+        }
+        if ((body[0] & FLAG_DEFLATED) != 0) {
+            if (body.length < 5) {
+                throw new IOException("Truncated compressed frame");
+            }
+            int rawLength = ((body[1] & 0xFF) << 24) | ((body[2] & 0xFF) << 16) | ((body[3] & 0xFF) << 8)
+                    | (body[4] & 0xFF);
+            if (rawLength < 1 || rawLength > maxPayload) {
+                throw new IOException("Invalid frame length: " + rawLength);
+            }
+            return BinaryCodec.decode(inflate(inflater, Arrays.copyOfRange(body, 5, body.length), rawLength));
+        }
+        return BinaryCodec.decode(body, 1, body.length - 1);
+    }
+
+    private static byte[] deflate(Deflater deflater, byte[] payload) {
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(payload);
+        deflater.finish();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.max(64, payload.length / 2));
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            int count = deflater.deflate(chunk);
+            buffer.write(chunk, 0, count);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static byte[] inflate(Inflater inflater, byte[] deflated, int rawLength) throws IOException {
+        inflater.reset();
+        inflater.setInput(deflated);
+        byte[] result = new byte[rawLength];
+        try {
+            int offset = 0;
+            while (offset < rawLength) {
+                int count = inflater.inflate(result, offset, rawLength - offset);
+                if (count == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        break;
+                    }
+                }
+                offset += count;
+            }
+            if (offset != rawLength) {
+                throw new IOException("Truncated compressed frame");
+            }
+        } catch (DataFormatException | IllegalArgumentException e) {
+            // IllegalArgumentException: the frame asks for a preset dictionary other than ours
+            throw new IOException("Corrupt compressed frame", e);
+        }
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        deflater.end();
+        inflater.end();
+        out.close();
+        in.close();
+    }
+}
+
+// Explicit field-by-field encoding of FileOperation. Strings are UTF-8 with an int length (-1 = null).
+// Operation types are written by ordinal, so new OperationType values must be appended at the end.
+// Decoding trusts nothing the peer sends: every length and count is checked against the bytes left in
+// the frame before anything is allocated, and a malformed frame is an IOException, never a runtime error.
+class BinaryCodec {
+    static final byte VERSION = 4;
+    // Both ends refuse anything larger. The largest frame a client legitimately sends is a BATCH of about
+    // App.MAX_BATCH_BYTES; the server keeps the notes it inlines in one response well below this
+    static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    private static final byte DATA_NULL = 0;
+    private static final byte DATA_FILE_LIST = 1;
+    private static final byte DATA_SYNC_DELTA = 2;
+    private static final byte DATA_FILE_CHUNK = 3;
+    private static final byte DATA_OPERATION_LIST = 4;
+    private static final byte DATA_BATCH_RESULT = 5;
+    private static final byte DATA_FILE_PATCH = 6;
+    private static final byte DATA_SESSION_GRANT = 7;
+
+    // Smallest encodings, used to reject counts the rest of the frame can't possibly hold
+    private static final int MIN_STRING_BYTES = 4;
+    private static final int MIN_FILE_DATA_BYTES = 3 * MIN_STRING_BYTES + 16;
+    private static final int MIN_OPERATION_BYTES = 1 + 8 + 5 * MIN_STRING_BYTES + 1;
+    private static final int MIN_PATCH_HUNK_BYTES = 8 + MIN_STRING_BYTES;
+
+    private BinaryCodec() {
+    }
+
+    public static byte[] encode(FileOperation op) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(VERSION);
+        writeOperation(out, op);
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    public static FileOperation decode(byte[] frame) throws IOException {
+        return decode(frame, 0, frame.length);
+    }
+
+    public static FileOperation decode(byte[] frame, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame, offset, length));
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported frame version: " + version);
+        }
+        return readOperation(in, true);
+    }
+
+    private static void writeOperation(DataOutputStream out, FileOperation op) throws IOException {
+        out.writeByte(op.getType().ordinal());
+        out.writeLong(op.getRequestId());
+        writeString(out, op.getIdempotencyKey());
+        writeString(out, op.getUsername());
+        writeString(out, op.getFileName());
+        writeString(out, op.getContent());
+        writeStringList(out, op.getFileNames());
+        writeData(out, op.getType(), op.getData());
+    }
+
+    // Only a top-level BATCH may carry sub-operations, which bounds the nesting (and the stack) to one level
+    private static FileOperation readOperation(DataInputStream in, boolean topLevel) throws IOException {
+        int typeIndex = in.readUnsignedByte();
+        OperationType[] types = OperationType.values();
+        if (typeIndex >= types.length) {
+            throw new IOException("Unknown operation type: " + typeIndex);
+        }
+        long requestId = in.readLong();
+        String idempotencyKey = readString(in);
+        String username = readString(in);
+        String fileName = readString(in);
+        String content = readString(in);
+        List<String> fileNames = readStringList(in);
+        Object data = readData(in, topLevel && types[typeIndex] == OperationType.BATCH);
+
+        FileOperation op = new FileOperation(types[typeIndex], username, fileName, content, data);
+        op.setFileNames(fileNames);
+        op.setRequestId(requestId);
+        op.setIdempotencyKey(idempotencyKey);
+        return op;
+    }
+
+    // A list's encoding follows the operation type, so an empty BATCH still goes out as an operation list
+    private static void writeData(DataOutputStream out, OperationType type, Object data) throws IOException {
+        if (data == null) {
+            out.writeByte(DATA_NULL);
+        } else if (data instanceof List && type == OperationType.BATCH) {
+            // BATCH sub-operations
+            out.writeByte(DATA_OPERATION_LIST);
+            List<?> ops = (List<?>) data;
+            out.writeInt(ops.size());
+            for (Object op : ops) {
+                writeOperation(out, (FileOperation) op);
+            }
+        } else if (data instanceof List) {
+            out.writeByte(DATA_FILE_LIST);
+            List<?> files = (List<?>) data;
+            out.writeInt(files.size());
+            for (Object file : files) {
+                writeFileData(out, (FileData) file);
+            }
+        } else if (data instanceof SyncDelta) {
+            out.writeByte(DATA_SYNC_DELTA);
+            SyncDelta delta = (SyncDelta) data;
+            out.writeLong(delta.getCursor());
+            Map<String, String> hashes = delta.getKnownHashes();
+            out.writeInt(hashes == null ? -1 : hashes.size());
+            if (hashes != null) {
+                for (Map.Entry<String, String> entry : hashes.entrySet()) {
+                    writeString(out, entry.getKey());
+                    writeString(out, entry.getValue());
+                }
+            }
+            List<FileData> changed = delta.getChanged();
+            out.writeInt(changed == null ? -1 : changed.size());
+            if (changed != null) {
+                for (FileData file : changed) {
+                    writeFileData(out, file);
+                }
+            }
+            writeStringList(out, delta.getDeleted());
+        } else if (data instanceof FileChunk) {
+            out.writeByte(DATA_FILE_CHUNK);
+            FileChunk chunk = (FileChunk) data;
+            writeString(out, chunk.getTransferId());
+            out.writeLong(chunk.getOffset());
+            out.writeLong(chunk.getTotalSize());
+            out.writeLong(chunk.getChecksum());
+            byte[] bytes = chunk.getBytes();
+            out.writeInt(bytes == null ? -1 : bytes.length);
+            if (bytes != null) {
+                out.write(bytes);
+            }
+        } else if (data instanceof FilePatch) {
+            out.writeByte(DATA_FILE_PATCH);
+            FilePatch patch = (FilePatch) data;
+            writeString(out, patch.getBaseHash());
+            writeString(out, patch.getTargetHash());
+            out.writeInt(patch.getOffsets().length);
+            for (int i = 0; i < patch.getOffsets().length; i++) {
+                out.writeInt(patch.getOffsets()[i]);
+                out.writeInt(patch.getDeleteLengths()[i]);
+                writeString(out, patch.getInserts()[i]);
+            }
+        } else if (data instanceof SessionGrant) {
+            out.writeByte(DATA_SESSION_GRANT);
+            SessionGrant grant = (SessionGrant) data;
+            writeString(out, grant.getToken());
+            out.writeLong(grant.getExpiresAt());
+        } else if (data instanceof BatchResult) {
+            out.writeByte(DATA_BATCH_RESULT);
+            byte[] statuses = ((BatchResult) data).getStatuses();
+            out.writeInt(statuses.length);
+            out.write(statuses);
+        } else {
+            throw new IOException("Unsupported payload type: " + data.getClass().getName());
+        }
+    }
+
+    private static Object readData(DataInputStream in, boolean allowOperations) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case DATA_NULL:
+                return null;
+            case DATA_FILE_LIST: {
+                int count = readCount(in, MIN_FILE_DATA_BYTES);
+                List<FileData> files = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    files.add(readFileData(in));
+                }
+                return files;
+            }
+            case DATA_SYNC_DELTA: {
+                long cursor = in.readLong();
+                int hashCount = readOptionalCount(in, 2 * MIN_STRING_BYTES);
+                Map<String, String> hashes = null;
+                if (hashCount >= 0) {
+                    hashes = new HashMap<>();
+                    for (int i = 0; i < hashCount; i++) {
+                        hashes.put(readString(in), readString(in));
+                    }
+                }
+                int changedCount = readOptionalCount(in, MIN_FILE_DATA_BYTES);
+                List<FileData> changed = null;
+                if (changedCount >= 0) {
+                    changed = new ArrayList<>(changedCount);
+                    for (int i = 0; i < changedCount; i++) {
+                        changed.add(readFileData(in));
+                    }
+                }
+                List<String> deleted = readStringList(in);
+                if (hashes != null) {
+                    return new SyncDelta(cursor, hashes);
+                }
+                return new SyncDelta(cursor, changed, deleted);
+            }
+            case DATA_FILE_CHUNK: {
+                String transferId = readString(in);
+                long offset = in.readLong();
+                long totalSize = in.readLong();
+                long checksum = in.readLong();
+                int length = readOptionalCount(in, 1);
+                byte[] bytes = null;
+                if (length >= 0) {
+                    bytes = new byte[length];
+                    in.readFully(bytes);
+                }
+                return new FileChunk(transferId, offset, totalSize, bytes, checksum);
+            }
+            case DATA_OPERATION_LIST: {
+                if (!allowOperations) {
+                    throw new IOException("Unexpected operation list");
+                }
+                int count = readCount(in, MIN_OPERATION_BYTES);
+                List<FileOperation> ops = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    ops.add(readOperation(in, false));
+                }
+                return ops;
+            }
+            case DATA_BATCH_RESULT: {
+                byte[] statuses = new byte[readCount(in, 1)];
+                in.readFully(statuses);
+                return new BatchResult(statuses);
+            }
+            case DATA_FILE_PATCH: {
+                String baseHash = readString(in);
+                String targetHash = readString(in);
+                int count = readCount(in, MIN_PATCH_HUNK_BYTES);
+                int[] offsets = new int[count];
+                int[] deleteLengths = new int[count];
+                String[] inserts = new String[count];
+                for (int i = 0; i < count; i++) {
+                    offsets[i] = in.readInt();
+                    deleteLengths[i] = in.readInt();
+                    inserts[i] = readString(in);
+                }
+                return new FilePatch(baseHash, targetHash, offsets, deleteLengths, inserts);
+            }
+            case DATA_SESSION_GRANT:
+                return new SessionGrant(readString(in), in.readLong());
+            default:
+                throw new IOException("Unknown payload tag: " + tag);
+        }
+    }
+
+    private static void writeFileData(DataOutputStream out, FileData file) throws IOException {
+        writeString(out, file.getFileName());
+        writeString(out, file.getContent());
+        out.writeLong(file.getSize());
+        out.writeLong(file.getVersion());
+        writeString(out, file.getHash());
+    }
+
+    private static FileData readFileData(DataInputStream in) throws IOException {
+        String fileName = readString(in);
+        String content = readString(in);
+        long size = in.readLong();
+        long version = in.readLong();
+        String hash = readString(in);
+        if (content == null && size >= 0) {
+            return new FileData(fileName, size, version, hash);
+        }
+        return new FileData(fileName, content, version, hash);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readOptionalCount(in, 1);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeStringList(DataOutputStream out, List<String> values) throws IOException {
+        out.writeInt(values == null ? -1 : values.size());
+        if (values != null) {
+            for (String value : values) {
+                writeString(out, value);
+            }
+        }
+    }
+
+    private static List<String> readStringList(DataInputStream in) throws IOException {
+        int count = readOptionalCount(in, MIN_STRING_BYTES);
+        if (count < 0) {
+            return null;
+        }
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    // A count of items that take at least minBytesEach; the stream is always a ByteArrayInputStream,
+    // so available() is exactly what is left of the frame
+    private static int readCount(DataInputStream in, int minBytesEach) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > in.available() / minBytesEach) {
+            throw new IOException("Invalid count: " + count);
+        }
+        return count;
+    }
+
+    // As readCount, but -1 stands for null
+    private static int readOptionalCount(DataInputStream in, int minBytesEach) throws IOException {
+        int count = in.readInt();
+        if (count < -1 || count > in.available() / minBytesEach) {
+            throw new IOException("Invalid count: " + count);
+        }
+        return count;
+    }
+}
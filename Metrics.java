@@ -0,0 +1,237 @@
+import javax.management.*;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Latency histograms and counters for the hot paths: messages on the wire, request round trips,
+// vault reads and writes, database auth queries.
+// Off unless -Djnote.metrics=true. ENABLED is a static final, so when it is off every call below is a
+// branch the JIT folds away, and call sites that build metric names guard on it first.
+// When on, metrics are exported over JMX (jnote:type=Metrics,process=<process>) and dumped as JSON every
+// -Djnote.metrics.dumpSeconds (default 60) to ~/.jnote/<process>-metrics.json, with one line per dump
+// appended to ~/.jnote/<process>-metrics.log.
+final class Metrics {
+    static final boolean ENABLED = Boolean.getBoolean("jnote.metrics");
+
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static boolean exporting;
+
+    private Metrics() {
+    }
+
+    // Pass the result to record(); 0 when disabled so no clock is read
+    static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    static void record(String name, long startNanos) {
+        if (ENABLED) {
+            histogram(name).record(System.nanoTime() - startNanos);
+        }
+    }
+
+    static void count(String name, long delta) {
+        if (ENABLED) {
+            counters.computeIfAbsent(name, key -> new LongAdder()).add(delta);
+        }
+    }
+
+    static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    // Registers the MBean and starts the periodic dump; safe to call more than once
+    static synchronized void startExport(String process) {
+        if (!ENABLED || exporting) {
+            return;
+        }
+        exporting = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(),
+                    new ObjectName("jnote:type=Metrics,process=" + process));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        long period = Long.getLong("jnote.metrics.dumpSeconds", 60);
+        File dir = new File(System.getProperty("user.home"), ".jnote");
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jnote-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleWithFixedDelay(() -> dump(new File(dir, process + "-metrics.json"),
+                new File(dir, process + "-metrics.log")), period, period, TimeUnit.SECONDS);
+    }
+
+    static String toJson() {
+        StringBuilder json = new StringBuilder("{\"timestamp\":").append(System.currentTimeMillis());
+        json.append(",\"counters\":{");
+        String separator = "";
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            json.append(separator).append('"').append(entry.getKey()).append("\":").append(entry.getValue().sum());
+            separator = ",";
+        }
+        json.append("},\"latencies\":{");
+        separator = "";
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            json.append(separator).append('"').append(entry.getKey()).append("\":{\"count\":")
+                    .append(histogram.getCount())
+                    .append(",\"meanMicros\":").append(histogram.getMeanNanos() / 1000)
+                    .append(",\"p50Micros\":").append(histogram.percentileNanos(0.50) / 1000)
+                    .append(",\"p99Micros\":").append(histogram.percentileNanos(0.99) / 1000)
+                    .append(",\"maxMicros\":").append(histogram.getMaxNanos() / 1000).append('}');
+            separator = ",";
+        }
+        return json.append("}}").toString();
+    }
+
+    private static void dump(File json, File log) {
+        try {
+            json.getParentFile().mkdirs();
+            String snapshot = toJson();
+            File temp = new File(json.getPath() + ".tmp");
+            Files.writeString(temp.toPath(), snapshot);
+            Files.move(temp.toPath(), json.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            Files.writeString(log.toPath(), snapshot + System.lineSeparator(), StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Power-of-two nanosecond buckets: lock-free to record, percentiles accurate to within 2x
+    static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            long value = Math.max(1, nanos);
+            buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        long getMeanNanos() {
+            long n = count.sum();
+            return n == 0 ? 0 : sum.sum() / n;
+        }
+
+        long getMaxNanos() {
+            return max.get();
+        }
+
+        // Upper bound of the bucket holding the given percentile
+        long percentileNanos(double percentile) {
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                total += buckets.get(i);
+            }
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen > 0 && seen >= total * percentile) {
+                    return i >= 62 ? Long.MAX_VALUE : 1L << (i + 1);
+                }
+            }
+            return 0;
+        }
+    }
+
+    // One read-only attribute per counter and per histogram statistic, e.g. "rpc.UPDATE_FILE.p99Micros"
+    private static class MetricsMBean implements DynamicMBean {
+        private static final String[] STATISTICS = { "count", "meanMicros", "p50Micros", "p99Micros", "maxMicros" };
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            LongAdder counter = counters.get(attribute);
+            if (counter != null) {
+                return counter.sum();
+            }
+            int dot = attribute.lastIndexOf('.');
+            Histogram histogram = dot < 0 ? null : histograms.get(attribute.substring(0, dot));
+            if (histogram == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            switch (attribute.substring(dot + 1)) {
+                case "count":
+                    return histogram.getCount();
+                case "meanMicros":
+                    return histogram.getMeanNanos() / 1000;
+                case "p50Micros":
+                    return histogram.percentileNanos(0.50) / 1000;
+                case "p99Micros":
+                    return histogram.percentileNanos(0.99) / 1000;
+                case "maxMicros":
+                    return histogram.getMaxNanos() / 1000;
+                default:
+                    throw new AttributeNotFoundException(attribute);
+            }
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // Skipped, as the JMX contract allows
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        // Rebuilt on every call so metrics that appeared since the last look show up in the console
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : new TreeSet<>(counters.keySet())) {
+                attributes.add(new MBeanAttributeInfo(name, "long", "Counter", true, false, false));
+            }
+            for (String name : new TreeSet<>(histograms.keySet())) {
+                for (String statistic : STATISTICS) {
+                    attributes.add(new MBeanAttributeInfo(name + "." + statistic, "long", "Latency " + statistic,
+                            true, false, false));
+                }
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Jnote hot-path metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Bounded LRU cache of note contents keyed by file name, sized by (approximate) bytes rather than entries.
+// Size it with -Djnote.cache.maxBytes. Hits, misses and evictions are counted as <name>.hits etc. in Metrics
+// (and getStats()) to help pick a value.
+class NoteContentCache {
+    static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private final String name;
+    private final long maxBytes;
+    private final LinkedHashMap<String, String> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long currentBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public NoteContentCache(String name) {
+        this(name, Long.getLong("jnote.cache.maxBytes", DEFAULT_MAX_BYTES));
+    }
+
+    public NoteContentCache(String name, long maxBytes) {
+        this.name = name;
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized String get(String fileName) {
+        String content = entries.get(fileName);
+        if (content == null) {
+            misses++;
+            Metrics.count(name + ".misses", 1);
+        } else {
+            hits++;
+            Metrics.count(name + ".hits", 1);
+        }
+        return content;
+    }
+
+    public synchronized void put(String fileName, String content) {
+        invalidate(fileName);
+        long size = sizeOf(content);
+        // A single huge note would just flush everything else out
+        if (size > maxBytes / 4) {
+            return;
+        }
+        entries.put(fileName, content);
+        currentBytes += size;
+
+        Iterator<Map.Entry<String, String>> it = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, String> eldest = it.next();
+            currentBytes -= sizeOf(eldest.getValue());
+            it.remove();
+            evictions++;
+            Metrics.count(name + ".evictions", 1);
+        }
+    }
+
+    public synchronized void invalidate(String fileName) {
+        String removed = entries.remove(fileName);
+        if (removed != null) {
+            currentBytes -= sizeOf(removed);
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized String getStats() {
+        return String.format("entries=%d bytes=%d/%d hits=%d misses=%d evictions=%d",
+                entries.size(), currentBytes, maxBytes, hits, misses, evictions);
+    }
+
+    // Two bytes per char plus a rough allowance for the String and map entry headers
+    private static long sizeOf(String content) {
+        return 2L * content.length() + 64;
+    }
+}
@@ -0,0 +1,410 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+// Write-ahead journal of operations that still have to reach the server.
+// Every mutation is appended here first and only sent once it is on disk, so edits made while the
+// server is down (or just before a crash) are replayed in order when it is reachable again. Appends
+// are group-committed: one fsync covers everything written since the previous one. Each operation
+// carries an idempotency key, so resending one the server already applied is harmless.
+// An operation the server refuses outright (FAILED, UNSUPPORTED) is moved to a dead-letter file, in the
+// same record format, and reported; one refused for want of a session (UNAUTHORIZED) stays queued.
+class OperationJournal implements AutoCloseable {
+    private static final String JOURNAL_FILE = ".journal";
+    static final String REJECTED_FILE = ".journal-rejected";
+    private static final int MAGIC = 0x4A4E4A4C; // "JNJL"
+    private static final int FORMAT_VERSION = 1;
+    // magic, format version, offset of the first record the server has not acknowledged
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_IN_FLIGHT = 32;
+    private static final long MIN_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    private static class Entry {
+        final FileOperation op;
+        final long end;
+        final CompletableFuture<FileOperation> response;
+        boolean durable;
+        CompletableFuture<FileOperation> attempt;
+
+        Entry(FileOperation op, long end, CompletableFuture<FileOperation> response) {
+            this.op = op;
+            this.end = end;
+            this.response = response;
+        }
+    }
+
+    private final FileChannel channel;
+    private final Function<FileOperation, CompletableFuture<FileOperation>> sender;
+    // Turns a rejected operation into the one to send instead (e.g. a stale patch into a full update), or null
+    private final Function<FileOperation, FileOperation> fallback;
+    // Told about each dead-lettered operation, and once per stall about UNAUTHORIZED; called outside the lock
+    private final BiConsumer<FileOperation, FileOperation> rejected;
+    private final Path rejectedPath;
+    // Unacknowledged entries in journal order; guarded by this
+    private final ArrayDeque<Entry> outstanding = new ArrayDeque<>();
+    private final List<Entry> unflushed = new ArrayList<>();
+    private final Thread flusher;
+    private final Thread replayer;
+    private long writePosition;
+    private long backoffMillis;
+    private long retryAt;
+    private boolean closed;
+    private boolean unauthorizedReported;
+
+    private OperationJournal(FileChannel channel, Path rejectedPath,
+            Function<FileOperation, CompletableFuture<FileOperation>> sender,
+            Function<FileOperation, FileOperation> fallback, BiConsumer<FileOperation, FileOperation> rejected) {
+        this.channel = channel;
+        this.rejectedPath = rejectedPath;
+        this.sender = sender;
+        this.fallback = fallback;
+        this.rejected = rejected;
+        this.flusher = new Thread(this::flushLoop, "jnote-journal-flush");
+        this.replayer = new Thread(this::replayLoop, "jnote-journal-replay");
+        flusher.setDaemon(true);
+        replayer.setDaemon(true);
+    }
+
+    // Opens (or creates) the vault's journal and starts replaying whatever a previous session left behind
+    public static OperationJournal open(java.io.File notesFolder,
+            Function<FileOperation, CompletableFuture<FileOperation>> sender,
+            Function<FileOperation, FileOperation> fallback, BiConsumer<FileOperation, FileOperation> rejected)
+            throws IOException {
+        Path path = new java.io.File(notesFolder, JOURNAL_FILE).toPath();
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        OperationJournal journal = new OperationJournal(channel, new java.io.File(notesFolder, REJECTED_FILE).toPath(),
+                sender, fallback, rejected);
+        try {
+            journal.recover();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        journal.flusher.start();
+        journal.replayer.start();
+        return journal;
+    }
+
+    // Appends an operation; it is sent once durable. The future completes with the server's response,
+    // which may come much later if the server is unreachable right now.
+    public CompletableFuture<FileOperation> submit(FileOperation op) {
+        if (op.getIdempotencyKey() == null) {
+            op.setIdempotencyKey(UUID.randomUUID().toString());
+        }
+        CompletableFuture<FileOperation> response = new CompletableFuture<>();
+        try {
+            byte[] payload = BinaryCodec.encode(op);
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Journal closed");
+                }
+                writeRecord(payload);
+                Entry entry = new Entry(op, writePosition, response);
+                outstanding.addLast(entry);
+                unflushed.add(entry);
+                notifyAll();
+            }
+        } catch (IOException e) {
+            response.completeExceptionally(e);
+        }
+        return response;
+    }
+
+    // Operations written but not yet acknowledged by the server
+    public synchronized int getPendingCount() {
+        return outstanding.size();
+    }
+
+    // Connectivity is probably back: retry now instead of waiting out the backoff
+    public synchronized void resume() {
+        retryAt = 0;
+        backoffMillis = 0;
+        notifyAll();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join(2000);
+            replayer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                channel.force(false);
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (size < HEADER_SIZE || channel.read(header, 0) < HEADER_SIZE
+                || header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION) {
+            reset();
+            return;
+        }
+        long position = Math.max(HEADER_SIZE, header.getLong(8));
+        ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (position + RECORD_HEADER_SIZE <= size) {
+            recordHeader.clear();
+            channel.read(recordHeader, position);
+            int length = recordHeader.getInt(0);
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > size) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            channel.read(payload, position + RECORD_HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(payload.array());
+            if ((int) crc.getValue() != recordHeader.getInt(4)) {
+                break;
+            }
+            position += RECORD_HEADER_SIZE + length;
+            Entry entry = new Entry(BinaryCodec.decode(payload.array()), position, new CompletableFuture<>());
+            entry.durable = true;
+            outstanding.addLast(entry);
+        }
+        // Anything past the last intact record is a torn write from a crash
+        channel.truncate(position);
+        writePosition = position;
+        if (outstanding.isEmpty()) {
+            reset();
+        }
+    }
+
+    // Every record has been acknowledged: start the file over so it never grows without bound
+    private void reset() throws IOException {
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(HEADER_SIZE).flip();
+        channel.write(header, 0);
+        channel.force(false);
+        writePosition = HEADER_SIZE;
+    }
+
+    private void writeRecord(byte[] payload) throws IOException {
+        ByteBuffer record = record(payload);
+        while (record.hasRemaining()) {
+            writePosition += channel.write(record, writePosition);
+        }
+    }
+
+    private static ByteBuffer record(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        return record;
+    }
+
+    // Keeps a refused operation on disk (so the edit isn't simply gone) without ever sending it again
+    private void deadLetter(FileOperation op) {
+        try {
+            ByteBuffer record = record(BinaryCodec.encode(op));
+            Files.write(rejectedPath, java.util.Arrays.copyOf(record.array(), record.limit()),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Group commit: whoever appended while the previous fsync was running shares the next one
+    private void flushLoop() {
+        while (true) {
+            List<Entry> batch;
+            synchronized (this) {
+                while (unflushed.isEmpty() && !closed) {
+                    waitQuietly(0);
+                }
+                if (unflushed.isEmpty()) {
+                    return;
+                }
+                batch = new ArrayList<>(unflushed);
+                unflushed.clear();
+            }
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                // Not durable, but still queued in memory; send anyway rather than lose the edit
+                e.printStackTrace();
+            }
+            synchronized (this) {
+                for (Entry entry : batch) {
+                    entry.durable = true;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    // Sends durable entries in journal order with a bounded window in flight. A failed send means the
+    // connection is gone: everything unacknowledged is resent from the oldest entry after a backoff.
+    // Callers' futures are completed outside the lock so their callbacks can submit again freely.
+    private void replayLoop() {
+        List<Runnable> completions = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    if (!completeAcknowledged(completions) && !sendNext()) {
+                        long now = System.currentTimeMillis();
+                        waitQuietly(retryAt > now ? retryAt - now : 0);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // Keep replaying: a send that failed on the way out is retried like one that got no answer
+                    e.printStackTrace();
+                    retryLater();
+                }
+            }
+            for (Runnable completion : completions) {
+                completion.run();
+            }
+            completions.clear();
+        }
+    }
+
+    // Pops finished entries off the head; returns whether anything changed
+    private boolean completeAcknowledged(List<Runnable> completions) throws IOException {
+        boolean progressed = false;
+        while (!outstanding.isEmpty() && outstanding.peekFirst().attempt != null
+                && outstanding.peekFirst().attempt.isDone()) {
+            Entry head = outstanding.peekFirst();
+            FileOperation response;
+            try {
+                response = head.attempt.join();
+            } catch (RuntimeException e) {
+                retryLater();
+                return progressed;
+            }
+            if ("UNAUTHORIZED".equals(response.getContent())) {
+                // This connection has no session (yet): everything behind the head was refused too, so resending
+                // from the head once the session is back keeps the order
+                if (!unauthorizedReported) {
+                    unauthorizedReported = true;
+                    completions.add(() -> rejected.accept(head.op, response));
+                }
+                retryLater();
+                return progressed;
+            }
+            unauthorizedReported = false;
+            backoffMillis = 0;
+            outstanding.removeFirst();
+            FileOperation replacement = "HASH_MISMATCH".equals(response.getContent()) ? fallback.apply(head.op) : null;
+            if ("FAILED".equals(response.getContent()) || "UNSUPPORTED".equals(response.getContent())) {
+                // Refused outright. Not retried: the server remembers no idempotency key for a failed
+                // operation, so resending it later could apply it over newer edits already behind it
+                deadLetter(head.op);
+                completions.add(() -> {
+                    head.response.complete(response);
+                    rejected.accept(head.op, response);
+                });
+            } else if (replacement != null) {
+                // The caller sees the outcome of the replacement instead
+                submitLocked(replacement).whenComplete((result, error) -> {
+                    if (error != null) {
+                        head.response.completeExceptionally(error);
+                    } else {
+                        head.response.complete(result);
+                    }
+                });
+            } else {
+                completions.add(() -> head.response.complete(response));
+            }
+            acknowledge(head.end);
+            progressed = true;
+        }
+        return progressed;
+    }
+
+    // The connection is gone (or unauthorized): resend everything unacknowledged from the oldest after a backoff
+    private void retryLater() {
+        for (Entry entry : outstanding) {
+            entry.attempt = null;
+        }
+        backoffMillis = Math.min(MAX_BACKOFF_MILLIS, Math.max(MIN_BACKOFF_MILLIS, backoffMillis * 2));
+        retryAt = System.currentTimeMillis() + backoffMillis;
+    }
+
+    private CompletableFuture<FileOperation> submitLocked(FileOperation op) throws IOException {
+        op.setIdempotencyKey(UUID.randomUUID().toString());
+        CompletableFuture<FileOperation> response = new CompletableFuture<>();
+        writeRecord(BinaryCodec.encode(op));
+        Entry entry = new Entry(op, writePosition, response);
+        outstanding.addLast(entry);
+        unflushed.add(entry);
+        notifyAll();
+        return response;
+    }
+
+    private void acknowledge(long end) throws IOException {
+        if (outstanding.isEmpty() && unflushed.isEmpty()) {
+            reset();
+            return;
+        }
+        // Not forced: after a crash we may resend a few acknowledged operations, which idempotency keys absorb
+        ByteBuffer ack = ByteBuffer.allocate(8);
+        ack.putLong(end).flip();
+        channel.write(ack, 8);
+    }
+
+    // Starts the next unsent durable entry if the window allows; returns whether it did
+    private boolean sendNext() {
+        if (retryAt > System.currentTimeMillis()) {
+            return false;
+        }
+        int inFlight = 0;
+        for (Iterator<Entry> it = outstanding.iterator(); it.hasNext() && inFlight < MAX_IN_FLIGHT;) {
+            Entry entry = it.next();
+            if (entry.attempt != null) {
+                inFlight++;
+                continue;
+            }
+            if (!entry.durable) {
+                return false;
+            }
+            entry.attempt = sender.apply(entry.op);
+            entry.attempt.whenComplete((response, error) -> {
+                synchronized (OperationJournal.this) {
+                    notifyAll();
+                }
+            });
+            return true;
+        }
+        return false;
+    }
+
+    private void waitQuietly(long millis) {
+        try {
+            wait(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+// Small bounded JDBC connection pool with a per-connection prepared statement cache.
+// Closing a borrowed Connection returns it to the pool; closing a cached PreparedStatement
+// only releases it for reuse. Idle connections are validated before being handed out again.
+class PooledDataSource implements DataSource {
+    private static final long VALIDATE_AFTER_IDLE_MILLIS = 30_000;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int statementCacheSize;
+    private final Semaphore permits;
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private volatile int loginTimeoutSeconds = 10;
+    private volatile boolean closed;
+
+    public PooledDataSource(String url, String user, String password, int maxConnections, int statementCacheSize) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(maxConnections, true);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Pool is closed");
+        }
+        try {
+            if (!permits.tryAcquire(loginTimeoutSeconds, TimeUnit.SECONDS)) {
+                throw new SQLTimeoutException("Timed out waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a database connection", e);
+        }
+        try {
+            PooledConnection pooled = takeHealthyIdle();
+            if (pooled == null) {
+                pooled = new PooledConnection(DriverManager.getConnection(url, user, password));
+            }
+            return pooled.lease();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Pool credentials are fixed");
+    }
+
+    public void close() {
+        closed = true;
+        synchronized (idle) {
+            for (PooledConnection pooled : idle) {
+                pooled.closePhysical();
+            }
+            idle.clear();
+        }
+    }
+
+    private PooledConnection takeHealthyIdle() {
+        while (true) {
+            PooledConnection pooled;
+            synchronized (idle) {
+                pooled = idle.pollFirst();
+            }
+            if (pooled == null) {
+                return null;
+            }
+            if (pooled.isHealthy()) {
+                return pooled;
+            }
+            pooled.closePhysical();
+        }
+    }
+
+    private void release(PooledConnection pooled, boolean reusable) {
+        try {
+            if (reusable && !closed) {
+                synchronized (idle) {
+                    // Most recently used first, so rarely needed connections age out and get validated
+                    idle.addFirst(pooled);
+                }
+            } else {
+                pooled.closePhysical();
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    // One physical connection plus its statement cache
+    private class PooledConnection {
+        private final Connection physical;
+        private final Map<String, CachedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+        private long lastUsed = System.currentTimeMillis();
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        boolean isHealthy() {
+            try {
+                if (physical.isClosed()) {
+                    return false;
+                }
+                if (System.currentTimeMillis() - lastUsed > VALIDATE_AFTER_IDLE_MILLIS) {
+                    return physical.isValid(VALIDATION_TIMEOUT_SECONDS);
+                }
+                return true;
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        Connection lease() {
+            InvocationHandler handler = new InvocationHandler() {
+                private boolean returned;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+                    if ("close".equals(name)) {
+                        if (!returned) {
+                            returned = true;
+                            lastUsed = System.currentTimeMillis();
+                            release(PooledConnection.this, resetForReuse());
+                        }
+                        return null;
+                    }
+                    if ("isClosed".equals(name)) {
+                        return returned || physical.isClosed();
+                    }
+                    if (returned) {
+                        throw new SQLException("Connection has been returned to the pool");
+                    }
+                    if ("prepareStatement".equals(name) && args != null && args.length == 1) {
+                        return prepare((String) args[0]);
+                    }
+                    try {
+                        return method.invoke(physical, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            };
+            return (Connection) Proxy.newProxyInstance(PooledDataSource.class.getClassLoader(),
+                    new Class<?>[] { Connection.class }, handler);
+        }
+
+        private PreparedStatement prepare(String sql) throws SQLException {
+            CachedStatement cached = statements.get(sql);
+            if (cached != null && !cached.inUse && !cached.statement.isClosed()) {
+                cached.inUse = true;
+                return cached.proxy;
+            }
+            if (cached != null && cached.inUse) {
+                // Same SQL prepared twice in one borrow: hand out an uncached statement
+                return physical.prepareStatement(sql);
+            }
+            cached = new CachedStatement(physical.prepareStatement(sql));
+            cached.inUse = true;
+            statements.put(sql, cached);
+            evictStatements();
+            return cached.proxy;
+        }
+
+        private void evictStatements() {
+            Iterator<CachedStatement> it = statements.values().iterator();
+            while (statements.size() > statementCacheSize && it.hasNext()) {
+                CachedStatement eldest = it.next();
+                if (!eldest.inUse) {
+                    closeQuietly(eldest.statement);
+                    it.remove();
+                }
+            }
+        }
+
+        // Returns whether the connection is safe to hand out again
+        private boolean resetForReuse() {
+            try {
+                for (CachedStatement cached : statements.values()) {
+                    cached.inUse = false;
+                }
+                if (!physical.getAutoCommit()) {
+                    physical.rollback();
+                    physical.setAutoCommit(true);
+                }
+                return !physical.isClosed();
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        void closePhysical() {
+            for (CachedStatement cached : statements.values()) {
+                closeQuietly(cached.statement);
+            }
+            statements.clear();
+            closeQuietly(physical);
+        }
+    }
+
+    // A cached statement whose proxy turns close() into "release for reuse"
+    private static class CachedStatement {
+        final PreparedStatement statement;
+        final PreparedStatement proxy;
+        boolean inUse;
+
+        CachedStatement(PreparedStatement statement) {
+            this.statement = statement;
+            this.proxy = (PreparedStatement) Proxy.newProxyInstance(PooledDataSource.class.getClassLoader(),
+                    new Class<?>[] { PreparedStatement.class }, (p, method, args) -> {
+                        if ("close".equals(method.getName())) {
+                            inUse = false;
+                            statement.clearParameters();
+                            return null;
+                        }
+                        if ("isClosed".equals(method.getName())) {
+                            return !inUse || statement.isClosed();
+                        }
+                        try {
+                            return method.invoke(statement, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    });
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // Already broken; nothing useful to do
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return DriverManager.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+        DriverManager.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+        this.loginTimeoutSeconds = seconds;
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return loginTimeoutSeconds;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+}
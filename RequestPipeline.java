@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Pipelined client over a single MessageChannel.
+// Every request gets a correlation ID; a reader thread matches responses back to their futures,
+// so any number of requests can be in flight and nothing ever blocks the Event Dispatch Thread.
+// Futures complete on a dedicated callback thread, never on the EDT and never on the reader.
+class RequestPipeline {
+    private final MessageChannel channel;
+    private final AtomicLong nextRequestId = new AtomicLong(1);
+    private final Map<Long, CompletableFuture<FileOperation>> pending = new ConcurrentHashMap<>();
+    private final ExecutorService sender = Executors.newSingleThreadExecutor(daemon("jnote-sender"));
+    private final ExecutorService callbacks = Executors.newSingleThreadExecutor(daemon("jnote-callbacks"));
+    private final Thread reader;
+    private volatile Consumer<FileOperation> unsolicitedHandler = op -> {
+    };
+    private volatile Runnable closeHandler = () -> {
+    };
+    private volatile boolean closed;
+
+    public RequestPipeline(MessageChannel channel) {
+        this.channel = channel;
+        this.reader = daemon("jnote-reader").newThread(this::readLoop);
+        this.reader.start();
+    }
+
+    // Messages the server sends without a matching request (requestId 0 or unknown)
+    public void setUnsolicitedHandler(Consumer<FileOperation> handler) {
+        this.unsolicitedHandler = handler;
+    }
+
+    // Runs on the reader thread once the connection is gone, whether it broke or was closed
+    public void setCloseHandler(Runnable handler) {
+        this.closeHandler = handler;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public CompletableFuture<FileOperation> submit(FileOperation op) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IOException("Connection closed"));
+        }
+        long requestId = nextRequestId.getAndIncrement();
+        op.setRequestId(requestId);
+        CompletableFuture<FileOperation> future = new CompletableFuture<>();
+        if (Metrics.ENABLED) {
+            // Round trip per operation type, failures included
+            String metric = "rpc." + op.getType();
+            long start = System.nanoTime();
+            future.whenComplete((response, error) -> Metrics.record(metric, start));
+        }
+        pending.put(requestId, future);
+        try {
+            sender.execute(() -> {
+                try {
+                    channel.send(op);
+                } catch (IOException e) {
+                    fail(requestId, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed between the check above and here
+            fail(requestId, new IOException("Connection closed", e));
+        }
+        return future;
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public void close() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        failAll(new IOException("Connection closed"));
+        sender.shutdown();
+        callbacks.shutdown();
+    }
+
+    private void readLoop() {
+        try {
+            while (!closed) {
+                FileOperation response = channel.receive();
+                CompletableFuture<FileOperation> future = pending.remove(response.getRequestId());
+                if (future != null) {
+                    callbacks.execute(() -> future.complete(response));
+                } else {
+                    callbacks.execute(() -> unsolicitedHandler.accept(response));
+                }
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            if (!closed) {
+                e.printStackTrace();
+            }
+            closed = true;
+            failAll(e);
+            sender.shutdown();
+            callbacks.shutdown();
+        }
+        closeHandler.run();
+    }
+
+    private void fail(long requestId, Throwable error) {
+        CompletableFuture<FileOperation> future = pending.remove(requestId);
+        if (future != null) {
+            try {
+                callbacks.execute(() -> future.completeExceptionally(error));
+            } catch (RejectedExecutionException e) {
+                // Closed: nothing else completes on the callback thread any more
+                future.completeExceptionally(error);
+            }
+        }
+    }
+
+    private void failAll(Throwable error) {
+        for (Long requestId : pending.keySet()) {
+            CompletableFuture<FileOperation> future = pending.remove(requestId);
+            if (future != null) {
+                future.completeExceptionally(error);
+            }
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
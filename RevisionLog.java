@@ -0,0 +1,367 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Local revision history for the notes in a vault, kept in .history/ inside it: one append-only log per
+// note. A revision is stored as a full snapshot every SNAPSHOT_INTERVAL revisions, or whenever a delta
+// would not be much smaller, and as a forward delta against the revision before it otherwise, so any
+// revision is rebuilt from one snapshot and at most SNAPSHOT_INTERVAL - 1 patches.
+// Logs grow with every save, autosaves included; a background job compacts them to at most one revision
+// per minute, MAX_REVISIONS revisions and MAX_LOG_BYTES per note, always keeping the newest revision. A note
+// too large for MIN_SNAPSHOTS copies to fit in MAX_LOG_BYTES gets room for that many instead, so a big note
+// keeps some history rather than being compacted down to one revision on every save.
+// Every public method is synchronized; saves arrive on the autosave thread and reads on the EDT.
+class RevisionLog {
+    static final int SNAPSHOT_INTERVAL = 16;
+    static final int MAX_REVISIONS = 200;
+    static final long MAX_LOG_BYTES = 4L * 1024 * 1024;
+    static final int MIN_SNAPSHOTS = 4;
+    static final long THINNING_MILLIS = 60_000;
+    private static final String HISTORY_DIR = ".history";
+    private static final String LOG_SUFFIX = ".rev";
+    private static final byte KIND_SNAPSHOT = 1;
+    private static final byte KIND_DELTA = 2;
+    private static final int HEADER_SIZE = 13; // kind, timestamp, payload length
+    // Note logs whose index (and latest content) stay in memory
+    private static final int CACHED_NOTES = 32;
+    private static final long COMPACTION_MINUTES = 10;
+
+    // Identified by its timestamp, which compaction keeps for every revision it keeps
+    static class Revision {
+        final long timestamp;
+
+        Revision(long timestamp) {
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static class Record {
+        final long offset;
+        final byte kind;
+        final long timestamp;
+        final int length;
+
+        Record(long offset, byte kind, long timestamp, int length) {
+            this.offset = offset;
+            this.kind = kind;
+            this.timestamp = timestamp;
+            this.length = length;
+        }
+    }
+
+    // A note's records in order, plus its newest content once known so the next delta needs no rebuild
+    private static class NoteLog {
+        final List<Record> records = new ArrayList<>();
+        long size;
+        int sinceSnapshot;
+        String latest;
+        // Size of the newest content, or of the last snapshot until that is known; sets the byte limit
+        long latestSize;
+
+        long byteLimit() {
+            return RevisionLog.byteLimit(latestSize);
+        }
+    }
+
+    private final Path dir;
+    private final Map<String, NoteLog> logs = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, NoteLog> eldest) {
+            return size() > CACHED_NOTES;
+        }
+    };
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "jnote-history");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    RevisionLog(File notesFolder) throws IOException {
+        this.dir = notesFolder.toPath().resolve(HISTORY_DIR);
+        Files.createDirectories(dir);
+        compactor.scheduleWithFixedDelay(this::compactAll, COMPACTION_MINUTES, COMPACTION_MINUTES,
+                TimeUnit.MINUTES);
+    }
+
+    public synchronized void record(String fileName, String content) throws IOException {
+        record(fileName, content, System.currentTimeMillis());
+    }
+
+    // Records what a note held before its first recorded save, so the first edit can be undone too
+    public synchronized void recordBaseline(String fileName, String content, long timestamp) throws IOException {
+        if (log(fileName).records.isEmpty()) {
+            record(fileName, content, timestamp);
+        }
+    }
+
+    // Newest first
+    public synchronized List<Revision> list(String fileName) throws IOException {
+        NoteLog log = log(fileName);
+        List<Revision> revisions = new ArrayList<>(log.records.size());
+        for (int i = log.records.size() - 1; i >= 0; i--) {
+            revisions.add(new Revision(log.records.get(i).timestamp));
+        }
+        return revisions;
+    }
+
+    // Fails if the revision has been compacted away since it was listed
+    public synchronized String read(String fileName, Revision revision) throws IOException {
+        List<Record> records = log(fileName).records;
+        for (int i = records.size() - 1; i >= 0; i--) {
+            if (records.get(i).timestamp == revision.timestamp) {
+                return read(fileName, i);
+            }
+        }
+        throw new FileNotFoundException("Revision no longer kept");
+    }
+
+    private String read(String fileName, int number) throws IOException {
+        NoteLog log = log(fileName);
+        if (number == log.records.size() - 1 && log.latest != null) {
+            return log.latest;
+        }
+        int snapshot = number;
+        while (log.records.get(snapshot).kind != KIND_SNAPSHOT) {
+            snapshot--;
+        }
+        Record first = log.records.get(snapshot);
+        Record last = log.records.get(number);
+        byte[] region = new byte[(int) (last.offset + HEADER_SIZE + last.length - first.offset)];
+        try (RandomAccessFile file = new RandomAccessFile(logFile(fileName).toFile(), "r")) {
+            file.seek(first.offset);
+            file.readFully(region);
+        }
+        String content = null;
+        for (int i = snapshot; i <= number; i++) {
+            Record record = log.records.get(i);
+            int start = (int) (record.offset - first.offset) + HEADER_SIZE;
+            content = record.kind == KIND_SNAPSHOT
+                    ? new String(region, start, record.length, StandardCharsets.UTF_8)
+                    : decodeDelta(region, start, record.length).apply(content);
+        }
+        return content;
+    }
+
+    public synchronized void remove(String fileName) throws IOException {
+        logs.remove(fileName);
+        Files.deleteIfExists(logFile(fileName));
+    }
+
+    public void close() {
+        compactor.shutdown();
+    }
+
+    private void record(String fileName, String content, long timestamp) throws IOException {
+        NoteLog log = log(fileName);
+        String previous = log.records.isEmpty() ? null : log.latest != null ? log.latest
+                : read(fileName, log.records.size() - 1);
+        if (content.equals(previous)) {
+            return;
+        }
+        byte kind = KIND_SNAPSHOT;
+        byte[] payload = null;
+        if (previous != null && log.sinceSnapshot < SNAPSHOT_INTERVAL - 1) {
+            payload = encodeDelta(FilePatch.diff(previous, content));
+            kind = KIND_DELTA;
+            // A delta that rewrites most of the note buys nothing over a snapshot and lengthens the chain
+            if (payload.length > content.length() / 2) {
+                payload = null;
+                kind = KIND_SNAPSHOT;
+            }
+        }
+        if (payload == null) {
+            payload = content.getBytes(StandardCharsets.UTF_8);
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(
+                logFile(fileName), StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+            writeRecord(out, kind, timestamp, payload);
+        }
+        log.records.add(new Record(log.size, kind, timestamp, payload.length));
+        log.size += HEADER_SIZE + payload.length;
+        log.sinceSnapshot = kind == KIND_SNAPSHOT ? 0 : log.sinceSnapshot + 1;
+        log.latest = content;
+        log.latestSize = content.length();
+        // Nothing to drop while the newest revision is the only one
+        if (log.records.size() > MAX_REVISIONS + MAX_REVISIONS / 4
+                || log.records.size() > 1 && log.size > log.byteLimit()) {
+            compactor.execute(() -> compactQuietly(fileName));
+        }
+    }
+
+    private void compactAll() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + LOG_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                compactQuietly(name.substring(0, name.length() - LOG_SUFFIX.length()));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void compactQuietly(String fileName) {
+        try {
+            compact(fileName);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Rewrites a note's log as the newest revision of each minute, within the revision and byte limits
+    synchronized void compact(String fileName) throws IOException {
+        NoteLog log = log(fileName);
+        if (log.records.size() <= 1) {
+            return;
+        }
+        // Headers alone tell whether there is anything to do, so the periodic pass is cheap for most notes
+        boolean thinnable = false;
+        for (int i = 1; i < log.records.size() && !thinnable; i++) {
+            thinnable = log.records.get(i - 1).timestamp / THINNING_MILLIS
+                    == log.records.get(i).timestamp / THINNING_MILLIS;
+        }
+        if (!thinnable && log.records.size() <= MAX_REVISIONS && log.size <= log.byteLimit()) {
+            return;
+        }
+        List<String> contents = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        String content = null;
+        for (int i = 0; i < log.records.size(); i++) {
+            Record record = log.records.get(i);
+            content = record.kind == KIND_SNAPSHOT ? read(fileName, i) : patchAt(fileName, record).apply(content);
+            boolean sameMinute = !timestamps.isEmpty()
+                    && timestamps.get(timestamps.size() - 1) / THINNING_MILLIS == record.timestamp / THINNING_MILLIS;
+            if (sameMinute) {
+                contents.set(contents.size() - 1, content);
+                timestamps.set(timestamps.size() - 1, record.timestamp);
+            } else {
+                contents.add(content);
+                timestamps.add(record.timestamp);
+            }
+        }
+        int from = Math.max(0, contents.size() - MAX_REVISIONS);
+        long byteLimit = byteLimit(contents.get(contents.size() - 1).length());
+        ByteArrayOutputStream encoded;
+        while (true) {
+            encoded = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(encoded);
+            for (int i = from; i < contents.size(); i++) {
+                boolean snapshot = (i - from) % SNAPSHOT_INTERVAL == 0;
+                byte[] payload = snapshot ? contents.get(i).getBytes(StandardCharsets.UTF_8)
+                        : encodeDelta(FilePatch.diff(contents.get(i - 1), contents.get(i)));
+                writeRecord(out, snapshot ? KIND_SNAPSHOT : KIND_DELTA, timestamps.get(i), payload);
+            }
+            if (encoded.size() <= byteLimit || from == contents.size() - 1) {
+                break;
+            }
+            // Over the byte budget: let the oldest tenth go and try again
+            from += Math.max(1, (contents.size() - from) / 10);
+        }
+        Path temp = dir.resolve(fileName + LOG_SUFFIX + ".tmp");
+        Files.write(temp, encoded.toByteArray());
+        Files.move(temp, logFile(fileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logs.remove(fileName);
+        NoteLog compacted = log(fileName);
+        compacted.latest = contents.get(contents.size() - 1);
+        compacted.latestSize = compacted.latest.length();
+    }
+
+    private static long byteLimit(long latestSize) {
+        return Math.max(MAX_LOG_BYTES, MIN_SNAPSHOTS * (HEADER_SIZE + latestSize));
+    }
+
+    private FilePatch patchAt(String fileName, Record record) throws IOException {
+        byte[] payload = new byte[record.length];
+        try (RandomAccessFile file = new RandomAccessFile(logFile(fileName).toFile(), "r")) {
+            file.seek(record.offset + HEADER_SIZE);
+            file.readFully(payload);
+        }
+        return decodeDelta(payload, 0, payload.length);
+    }
+
+    // Scans the note's record headers on first use; a record torn by a crash is cut off
+    private NoteLog log(String fileName) throws IOException {
+        NoteLog log = logs.get(fileName);
+        if (log != null) {
+            return log;
+        }
+        log = new NoteLog();
+        Path file = logFile(fileName);
+        if (Files.isRegularFile(file)) {
+            try (RandomAccessFile in = new RandomAccessFile(file.toFile(), "rw")) {
+                long length = in.length();
+                long offset = 0;
+                while (offset + HEADER_SIZE <= length) {
+                    in.seek(offset);
+                    byte kind = in.readByte();
+                    long timestamp = in.readLong();
+                    int payloadLength = in.readInt();
+                    if (kind != KIND_SNAPSHOT && kind != KIND_DELTA || payloadLength < 0
+                            || offset + HEADER_SIZE + payloadLength > length
+                            || kind == KIND_DELTA && log.records.isEmpty()) {
+                        break;
+                    }
+                    log.records.add(new Record(offset, kind, timestamp, payloadLength));
+                    log.sinceSnapshot = kind == KIND_SNAPSHOT ? 0 : log.sinceSnapshot + 1;
+                    if (kind == KIND_SNAPSHOT) {
+                        log.latestSize = payloadLength;
+                    }
+                    offset += HEADER_SIZE + payloadLength;
+                }
+                if (offset < length) {
+                    in.setLength(offset);
+                }
+                log.size = offset;
+            }
+        }
+        logs.put(fileName, log);
+        return log;
+    }
+
+    private Path logFile(String fileName) {
+        return dir.resolve(fileName + LOG_SUFFIX);
+    }
+
+    private static void writeRecord(DataOutputStream out, byte kind, long timestamp, byte[] payload)
+            throws IOException {
+        out.writeByte(kind);
+        out.writeLong(timestamp);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    // Hunks only: the hashes FilePatch carries for the wire are not needed to replay a chain
+    private static byte[] encodeDelta(FilePatch patch) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(patch.getOffsets().length);
+        for (int i = 0; i < patch.getOffsets().length; i++) {
+            out.writeInt(patch.getOffsets()[i]);
+            out.writeInt(patch.getDeleteLengths()[i]);
+            byte[] insert = patch.getInserts()[i].getBytes(StandardCharsets.UTF_8);
+            out.writeInt(insert.length);
+            out.write(insert);
+        }
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    private static FilePatch decodeDelta(byte[] bytes, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, offset, length));
+        int count = in.readInt();
+        int[] offsets = new int[count];
+        int[] deleteLengths = new int[count];
+        String[] inserts = new String[count];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = in.readInt();
+            deleteLengths[i] = in.readInt();
+            byte[] insert = new byte[in.readInt()];
+            in.readFully(insert);
+            inserts[i] = new String(insert, StandardCharsets.UTF_8);
+        }
+        return new FilePatch(null, null, offsets, deleteLengths, inserts);
+    }
+}
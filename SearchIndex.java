@@ -0,0 +1,294 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+// Inverted index over the notes in a vault: token -> note -> (occurrence count, first positions).
+// Notes are tokenized from a Reader so even very large ones never sit in memory as one String.
+// The index is persisted next to the notes together with each note's content hash, so on startup
+// only notes whose hash changed since the last save need to be re-read.
+class SearchIndex {
+    private static final String INDEX_FILE = ".search_index";
+    private static final int MAGIC = 0x4A4E5349; // "JNSI"
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_POSITIONS = 32;
+    private static final int MAX_TOKEN_LENGTH = 64;
+    private static final int MAX_RESULTS = 500;
+
+    // Occurrences of one token in one note
+    static class Posting {
+        int count;
+        int[] positions = new int[4];
+        int positionCount;
+
+        void add(int position) {
+            count++;
+            if (positionCount < MAX_POSITIONS) {
+                if (positionCount == positions.length) {
+                    positions = Arrays.copyOf(positions, Math.min(positions.length * 2, MAX_POSITIONS));
+                }
+                positions[positionCount++] = position;
+            }
+        }
+    }
+
+    private static class NoteEntry {
+        final String hash;
+        final Set<String> tokens;
+
+        NoteEntry(String hash, Set<String> tokens) {
+            this.hash = hash;
+            this.tokens = tokens;
+        }
+    }
+
+    private final File file;
+    private final TreeMap<String, Map<String, Posting>> postings = new TreeMap<>();
+    private final Map<String, NoteEntry> notes = new HashMap<>();
+    private boolean dirty;
+
+    private SearchIndex(File file) {
+        this.file = file;
+    }
+
+    public static SearchIndex load(File notesFolder) {
+        SearchIndex index = new SearchIndex(new File(notesFolder, INDEX_FILE));
+        if (index.file.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index.file)))) {
+                index.read(in);
+            } catch (IOException e) {
+                // Unreadable index: reconcile() will rebuild it from the notes
+                e.printStackTrace();
+                index.postings.clear();
+                index.notes.clear();
+            }
+        }
+        return index;
+    }
+
+    // Brings the index in line with the vault: reindexes notes whose hash changed and drops vanished ones.
+    // knownHashes is the sync manifest; notes it doesn't know are always reindexed.
+    public void reconcile(File notesFolder, Map<String, String> knownHashes) throws IOException {
+        File[] txtFiles = notesFolder.listFiles((dir, name) -> name.endsWith(".txt"));
+        Set<String> onDisk = new HashSet<>();
+        if (txtFiles != null) {
+            for (File note : txtFiles) {
+                String fileName = note.getName();
+                onDisk.add(fileName);
+                String hash = knownHashes.get(fileName);
+                if (hash == null || !hash.equals(getHash(fileName))) {
+                    index(fileName, note.toPath(), hash);
+                }
+            }
+        }
+        for (String fileName : new ArrayList<>(getIndexedNames())) {
+            if (!onDisk.contains(fileName)) {
+                remove(fileName);
+            }
+        }
+    }
+
+    public void index(String fileName, Path path, String hash) throws IOException {
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            Map<String, Posting> noteTokens = tokenize(reader);
+            replace(fileName, hash, noteTokens);
+        }
+    }
+
+    public void index(String fileName, String content, String hash) {
+        try {
+            replace(fileName, hash, tokenize(new StringReader(content)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized void remove(String fileName) {
+        NoteEntry entry = notes.remove(fileName);
+        if (entry == null) {
+            return;
+        }
+        for (String token : entry.tokens) {
+            Map<String, Posting> byNote = postings.get(token);
+            if (byNote != null) {
+                byNote.remove(fileName);
+                if (byNote.isEmpty()) {
+                    postings.remove(token);
+                }
+            }
+        }
+        dirty = true;
+    }
+
+    // All query tokens must match; the last one also matches as a prefix so results follow typing.
+    // Results are ranked by total occurrences.
+    public synchronized List<String> search(String query) throws IOException {
+        List<String> terms = new ArrayList<>(tokenize(new StringReader(query)).keySet());
+        if (terms.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // tokenize() keeps insertion order, so the last typed term is the last key
+        String prefix = terms.remove(terms.size() - 1);
+
+        Map<String, Integer> scores = null;
+        for (String term : terms) {
+            Map<String, Posting> byNote = postings.getOrDefault(term, Collections.emptyMap());
+            scores = intersect(scores, byNote);
+            if (scores.isEmpty()) {
+                return Collections.emptyList();
+            }
+        }
+        Map<String, Integer> prefixScores = new HashMap<>();
+        for (Map<String, Posting> byNote : postings.subMap(prefix, true, prefix + Character.MAX_VALUE, false)
+                .values()) {
+            for (Map.Entry<String, Posting> entry : byNote.entrySet()) {
+                prefixScores.merge(entry.getKey(), entry.getValue().count, Integer::sum);
+            }
+        }
+        if (scores == null) {
+            scores = prefixScores;
+        } else {
+            Map<String, Integer> combined = new HashMap<>();
+            for (Map.Entry<String, Integer> entry : scores.entrySet()) {
+                Integer prefixScore = prefixScores.get(entry.getKey());
+                if (prefixScore != null) {
+                    combined.put(entry.getKey(), entry.getValue() + prefixScore);
+                }
+            }
+            scores = combined;
+        }
+
+        List<Map.Entry<String, Integer>> ranked = new ArrayList<>(scores.entrySet());
+        ranked.sort(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        List<String> results = new ArrayList<>(Math.min(ranked.size(), MAX_RESULTS));
+        for (int i = 0; i < ranked.size() && i < MAX_RESULTS; i++) {
+            results.add(ranked.get(i).getKey());
+        }
+        return results;
+    }
+
+    public synchronized int size() {
+        return notes.size();
+    }
+
+    public synchronized void saveIfDirty() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            write(out);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    private synchronized String getHash(String fileName) {
+        NoteEntry entry = notes.get(fileName);
+        return entry == null ? null : entry.hash;
+    }
+
+    private synchronized Set<String> getIndexedNames() {
+        return new HashSet<>(notes.keySet());
+    }
+
+    private synchronized void replace(String fileName, String hash, Map<String, Posting> noteTokens) {
+        remove(fileName);
+        for (Map.Entry<String, Posting> entry : noteTokens.entrySet()) {
+            postings.computeIfAbsent(entry.getKey(), token -> new HashMap<>()).put(fileName, entry.getValue());
+        }
+        notes.put(fileName, new NoteEntry(hash, new HashSet<>(noteTokens.keySet())));
+        dirty = true;
+    }
+
+    private static Map<String, Integer> intersect(Map<String, Integer> scores, Map<String, Posting> byNote) {
+        Map<String, Integer> result = new HashMap<>();
+        if (scores == null) {
+            for (Map.Entry<String, Posting> entry : byNote.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().count);
+            }
+        } else {
+            for (Map.Entry<String, Integer> entry : scores.entrySet()) {
+                Posting posting = byNote.get(entry.getKey());
+                if (posting != null) {
+                    result.put(entry.getKey(), entry.getValue() + posting.count);
+                }
+            }
+        }
+        return result;
+    }
+
+    // Lower-cased runs of letters and digits; position is the token's ordinal within the note
+    static Map<String, Posting> tokenize(Reader reader) throws IOException {
+        Map<String, Posting> tokens = new LinkedHashMap<>();
+        StringBuilder current = new StringBuilder();
+        char[] buffer = new char[8192];
+        int position = 0;
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                char c = buffer[i];
+                if (Character.isLetterOrDigit(c)) {
+                    if (current.length() < MAX_TOKEN_LENGTH) {
+                        current.append(Character.toLowerCase(c));
+                    }
+                } else if (current.length() > 0) {
+                    tokens.computeIfAbsent(current.toString(), t -> new Posting()).add(position++);
+                    current.setLength(0);
+                }
+            }
+        }
+        if (current.length() > 0) {
+            tokens.computeIfAbsent(current.toString(), t -> new Posting()).add(position);
+        }
+        return tokens;
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(notes.size());
+        for (Map.Entry<String, NoteEntry> note : notes.entrySet()) {
+            out.writeUTF(note.getKey());
+            out.writeUTF(note.getValue().hash == null ? "" : note.getValue().hash);
+            out.writeInt(note.getValue().tokens.size());
+            for (String token : note.getValue().tokens) {
+                Posting posting = postings.get(token).get(note.getKey());
+                out.writeUTF(token);
+                out.writeInt(posting.count);
+                out.writeByte(posting.positionCount);
+                for (int i = 0; i < posting.positionCount; i++) {
+                    out.writeInt(posting.positions[i]);
+                }
+            }
+        }
+    }
+
+    private void read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+            throw new IOException("Unrecognized search index format");
+        }
+        int noteCount = in.readInt();
+        for (int n = 0; n < noteCount; n++) {
+            String fileName = in.readUTF();
+            String hash = in.readUTF();
+            int tokenCount = in.readInt();
+            Set<String> tokens = new HashSet<>(tokenCount * 2);
+            for (int t = 0; t < tokenCount; t++) {
+                String token = in.readUTF();
+                Posting posting = new Posting();
+                posting.count = in.readInt();
+                posting.positionCount = in.readUnsignedByte();
+                posting.positions = new int[Math.max(posting.positionCount, 1)];
+                for (int i = 0; i < posting.positionCount; i++) {
+                    posting.positions[i] = in.readInt();
+                }
+                tokens.add(token);
+                postings.computeIfAbsent(token, k -> new HashMap<>()).put(fileName, posting);
+            }
+            notes.put(fileName, new NoteEntry(hash.isEmpty() ? null : hash, tokens));
+        }
+    }
+}
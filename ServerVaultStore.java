@@ -0,0 +1,524 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+// Server-side storage: one vault directory per user, spread over 256 shard directories so no single
+// directory ends up with every user in it. Each user's vault is its own lock, so writes by different
+// users never contend; within a user, operations are applied one at a time in arrival order.
+class ServerVaultStore {
+    private static final Pattern SAFE_USERNAME = Pattern.compile("[A-Za-z0-9._@-]{1,64}");
+    private static final Pattern SAFE_FILE_NAME = Pattern.compile("[^/\\\\:\\x00]{1,255}");
+
+    private final Path root;
+    private final Map<String, UserVault> vaults = new ConcurrentHashMap<>();
+
+    public ServerVaultStore(Path root) throws IOException {
+        this.root = root;
+        Files.createDirectories(root);
+    }
+
+    // Loads the user's vault on first use; concurrent callers for the same user get the same instance
+    public UserVault vault(String username) throws IOException {
+        if (username == null || !SAFE_USERNAME.matcher(username).matches() || username.startsWith(".")) {
+            throw new IOException("Invalid username");
+        }
+        try {
+            return vaults.computeIfAbsent(username, name -> {
+                try {
+                    return UserVault.open(root.resolve(shardOf(name)).resolve(name));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    static String shardOf(String username) {
+        return String.format("%02x", username.hashCode() & 0xFF);
+    }
+
+    static boolean isSafeFileName(String fileName) {
+        return fileName != null && SAFE_FILE_NAME.matcher(fileName).matches() && !fileName.startsWith(".")
+                && !fileName.equals("..");
+    }
+}
+
+// One user's notes plus the metadata sync needs: a version and content hash per note, tombstones for
+// deletions and a sequence number that orders every change. The metadata is rebuilt on startup from an
+// append-only change log that is rewritten once it is mostly superseded entries.
+// Content is stored once per distinct hash, as blobs under .blobs/<first two hex digits>/<hash>; notes
+// only name their blob, so copies of a template cost one file. Blobs are reference counted by the notes
+// that use them and deleted with the last one.
+// Every public method is synchronized: the vault is the per-user lock.
+class UserVault {
+    private static final String CHANGE_LOG = ".changes";
+    private static final String UPLOAD_PREFIX = ".upload-";
+    private static final String WRITE_PREFIX = ".write-";
+    private static final String BLOB_DIR = ".blobs";
+    // Present once notes stored as plain files by older versions have been moved into blobs
+    private static final String MIGRATED_MARKER = ".migrated";
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_DELETE = 2;
+    private static final int MAX_REMEMBERED_KEYS = 1024;
+    // Note content one sync or change-event response inlines; the rest goes as metadata to pull in chunks.
+    // Half a frame leaves ample room for that metadata
+    private static final long MAX_INLINE_BYTES = BinaryCodec.MAX_FRAME_SIZE / 2;
+    // An upload untouched for this long is abandoned; checked at most once a minute, on upload traffic
+    private static final long UPLOAD_EXPIRY_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long UPLOAD_SWEEP_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    static class Note {
+        final String hash;
+        final long size;
+        final long version;
+        final long seq;
+
+        Note(String hash, long size, long version, long seq) {
+            this.hash = hash;
+            this.size = size;
+            this.version = version;
+            this.seq = seq;
+        }
+    }
+
+    private static class Tombstone {
+        final String hash;
+        final long version;
+        final long seq;
+
+        Tombstone(String hash, long version, long seq) {
+            this.hash = hash;
+            this.version = version;
+            this.seq = seq;
+        }
+    }
+
+    private static class Upload {
+        final Path temp;
+        final long totalSize;
+        long received;
+        long lastActivity = System.currentTimeMillis();
+
+        Upload(Path temp, long totalSize) {
+            this.temp = temp;
+            this.totalSize = totalSize;
+        }
+    }
+
+    private final Path dir;
+    private final Map<String, Note> notes = new HashMap<>();
+    private final Map<String, Tombstone> tombstones = new HashMap<>();
+    private final Map<String, Upload> uploads = new HashMap<>();
+    private final Map<String, Integer> blobRefs = new HashMap<>();
+    // Responses to recently applied idempotency keys, so a replayed operation is answered, not reapplied.
+    // Kept in memory only: after a restart a replay is applied again, which is harmless for these operations.
+    private final Map<String, FileOperation> recentKeys = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FileOperation> eldest) {
+            return size() > MAX_REMEMBERED_KEYS;
+        }
+    };
+    private DataOutputStream log;
+    private long logRecords;
+    private long seq;
+    private long lastUploadSweep;
+
+    private UserVault(Path dir) {
+        this.dir = dir;
+    }
+
+    static UserVault open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        UserVault vault = new UserVault(dir);
+        boolean intact = vault.replayLog();
+        vault.log = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(dir.resolve(CHANGE_LOG), StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+        if (!intact) {
+            // Never append after a torn record
+            vault.compactLog();
+        }
+        // Abandoned uploads and writes from before a restart: the client finds no progress and starts over
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(dir, ".{upload,write}-*")) {
+            for (Path path : stale) {
+                Files.deleteIfExists(path);
+            }
+        }
+        vault.openBlobs();
+        return vault;
+    }
+
+    // Counts references, moves notes from the old one-file-per-note layout into blobs, and drops blobs
+    // nothing refers to (left by a crash between writing a blob and logging the note)
+    private void openBlobs() throws IOException {
+        for (Note note : notes.values()) {
+            blobRefs.merge(note.hash, 1, Integer::sum);
+        }
+        Path blobs = dir.resolve(BLOB_DIR);
+        Files.createDirectories(blobs);
+        if (!Files.exists(blobs.resolve(MIGRATED_MARKER))) {
+            for (Map.Entry<String, Note> entry : notes.entrySet()) {
+                Path legacy = dir.resolve(entry.getKey());
+                if (Files.exists(legacy)) {
+                    Path blob = blobPath(entry.getValue().hash);
+                    if (Files.exists(blob)) {
+                        Files.delete(legacy);
+                    } else {
+                        Files.createDirectories(blob.getParent());
+                        Files.move(legacy, blob, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                }
+            }
+            Files.createFile(blobs.resolve(MIGRATED_MARKER));
+        }
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(blobs, Files::isDirectory)) {
+            for (Path shard : shards) {
+                try (DirectoryStream<Path> stored = Files.newDirectoryStream(shard)) {
+                    for (Path blob : stored) {
+                        if (!blobRefs.containsKey(blob.getFileName().toString())) {
+                            Files.delete(blob);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public synchronized long getSeq() {
+        return seq;
+    }
+
+    public synchronized FileOperation rememberedResponse(String idempotencyKey) {
+        return idempotencyKey == null ? null : recentKeys.get(idempotencyKey);
+    }
+
+    public synchronized void remember(String idempotencyKey, FileOperation response) {
+        if (idempotencyKey != null) {
+            recentKeys.put(idempotencyKey, response);
+        }
+    }
+
+    // Creating an existing note empty is a no-op, which is what a replayed create should do; imports
+    // create with content, which is written either way
+    public synchronized void create(String fileName, String content) throws IOException {
+        if (notes.containsKey(fileName) && (content == null || content.isEmpty())) {
+            return;
+        }
+        write(fileName, content == null ? "" : content);
+    }
+
+    // Content the vault already holds under any name is not written again
+    public synchronized void write(String fileName, String content) throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        String hash = FileData.contentHash(content);
+        Path blob = blobPath(hash);
+        if (!Files.exists(blob)) {
+            Path temp = dir.resolve(WRITE_PREFIX + fileName);
+            Files.write(temp, bytes);
+            Files.createDirectories(blob.getParent());
+            Files.move(temp, blob, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        put(fileName, hash, bytes.length);
+    }
+
+    public synchronized String read(String fileName) throws IOException {
+        Note note = notes.get(fileName);
+        if (note == null) {
+            throw new FileNotFoundException(fileName);
+        }
+        return Files.readString(blobPath(note.hash));
+    }
+
+    // Returns false when the base the patch was made against is not what we hold
+    public synchronized boolean patch(String fileName, FilePatch patch) throws IOException {
+        Note note = notes.get(fileName);
+        if (note == null || !note.hash.equals(patch.getBaseHash())) {
+            return false;
+        }
+        String result = patch.apply(read(fileName));
+        if (!FileData.contentHash(result).equals(patch.getTargetHash())) {
+            return false;
+        }
+        write(fileName, result);
+        return true;
+    }
+
+    public synchronized boolean delete(String fileName) throws IOException {
+        Note note = notes.remove(fileName);
+        if (note == null) {
+            return false;
+        }
+        seq++;
+        tombstones.put(fileName, new Tombstone(note.hash, note.version, seq));
+        appendLog(RECORD_DELETE, fileName, note.hash, 0, note.version);
+        release(note.hash);
+        return true;
+    }
+
+    // Takes one chunk of an upload; returns the next offset wanted (unchanged on a bad or out-of-order chunk).
+    // A chunk without bytes only asks where the transfer got to, so a client resumes a transfer id it used before.
+    public synchronized long receiveChunk(String fileName, FileChunk chunk) throws IOException {
+        String transferId = chunk.getTransferId();
+        if (transferId == null || !ServerVaultStore.isSafeFileName(transferId)) {
+            throw new IOException("Invalid transfer id");
+        }
+        expireUploads();
+        Upload upload = uploads.get(transferId);
+        if (chunk.getBytes() == null) {
+            return upload == null ? 0 : upload.received;
+        }
+        if (upload == null) {
+            if (chunk.getOffset() != 0) {
+                return 0;
+            }
+            upload = new Upload(dir.resolve(UPLOAD_PREFIX + transferId), chunk.getTotalSize());
+            Files.deleteIfExists(upload.temp);
+            Files.createFile(upload.temp);
+            uploads.put(transferId, upload);
+        }
+        upload.lastActivity = System.currentTimeMillis();
+        byte[] bytes = chunk.getBytes();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if (chunk.getOffset() != upload.received || crc.getValue() != chunk.getChecksum()
+                || upload.received + bytes.length > upload.totalSize) {
+            return upload.received;
+        }
+        try (FileChannel channel = FileChannel.open(upload.temp, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(bytes), upload.received);
+        }
+        upload.received += bytes.length;
+        if (upload.received == upload.totalSize) {
+            uploads.remove(transferId);
+            String hash = SyncManifest.hashFile(upload.temp);
+            Path blob = blobPath(hash);
+            if (Files.exists(blob)) {
+                Files.delete(upload.temp);
+            } else {
+                Files.createDirectories(blob.getParent());
+                Files.move(upload.temp, blob, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            put(fileName, hash, upload.totalSize);
+        }
+        return upload.received;
+    }
+
+    private void expireUploads() throws IOException {
+        long now = System.currentTimeMillis();
+        if (now - lastUploadSweep < UPLOAD_SWEEP_MILLIS) {
+            return;
+        }
+        lastUploadSweep = now;
+        for (Iterator<Upload> it = uploads.values().iterator(); it.hasNext();) {
+            Upload upload = it.next();
+            if (now - upload.lastActivity > UPLOAD_EXPIRY_MILLIS) {
+                it.remove();
+                Files.deleteIfExists(upload.temp);
+            }
+        }
+    }
+
+    public synchronized FileChunk readChunk(String fileName, long offset, int maxBytes) throws IOException {
+        Note note = notes.get(fileName);
+        if (note == null) {
+            throw new FileNotFoundException(fileName);
+        }
+        try (FileChannel channel = FileChannel.open(blobPath(note.hash), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(maxBytes, size - offset)));
+            while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) > 0) {
+                // keep reading until the chunk is full
+            }
+            byte[] bytes = Arrays.copyOf(buffer.array(), buffer.position());
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            return new FileChunk(null, offset, size, bytes, crc.getValue());
+        }
+    }
+
+    // Everything that changed after cursor. knownHashes need only cover the notes the client changed since
+    // that cursor (all of them on a first sync): any note missing from it is taken to be as the client last
+    // synced it. Notes the client already holds (same hash) are left out, and a deletion is not reported
+    // when the client holds different content under that name, so a note it edited or recreated offline is
+    // never removed from under it. Content the client is known to hold under another name, or that this
+    // delta already carries, is sent as metadata only for the client to copy locally.
+    public synchronized SyncDelta changesSince(long cursor, Map<String, String> knownHashes) throws IOException {
+        Map<String, String> known = knownHashes == null ? Collections.emptyMap() : knownHashes;
+        Set<String> held = new HashSet<>(known.values());
+        List<FileData> changed = new ArrayList<>();
+        long[] inlineBudget = {MAX_INLINE_BYTES};
+        for (Map.Entry<String, Note> entry : notes.entrySet()) {
+            Note note = entry.getValue();
+            if (note.seq > cursor && !note.hash.equals(known.get(entry.getKey()))) {
+                changed.add(describe(entry.getKey(), note, held, inlineBudget));
+            }
+        }
+        List<String> deleted = new ArrayList<>();
+        for (Map.Entry<String, Tombstone> entry : tombstones.entrySet()) {
+            String clientHash = known.get(entry.getKey());
+            if (entry.getValue().seq > cursor && (clientHash == null || clientHash.equals(entry.getValue().hash))) {
+                deleted.add(entry.getKey());
+            }
+        }
+        return new SyncDelta(seq, changed, deleted);
+    }
+
+    // What a change event carries: every note written and every note deleted after seq
+    public synchronized SyncDelta eventsSince(long since) throws IOException {
+        Set<String> sent = new HashSet<>();
+        List<FileData> changed = new ArrayList<>();
+        long[] inlineBudget = {MAX_INLINE_BYTES};
+        for (Map.Entry<String, Note> entry : notes.entrySet()) {
+            if (entry.getValue().seq > since) {
+                changed.add(describe(entry.getKey(), entry.getValue(), sent, inlineBudget));
+            }
+        }
+        List<String> deleted = new ArrayList<>();
+        for (Map.Entry<String, Tombstone> entry : tombstones.entrySet()) {
+            if (entry.getValue().seq > since) {
+                deleted.add(entry.getKey());
+            }
+        }
+        return new SyncDelta(seq, changed, deleted);
+    }
+
+    public synchronized List<FileData> allNotes() throws IOException {
+        List<FileData> all = new ArrayList<>(notes.size());
+        long[] inlineBudget = {MAX_INLINE_BYTES};
+        for (Map.Entry<String, Note> entry : notes.entrySet()) {
+            all.add(describe(entry.getKey(), entry.getValue(), null, inlineBudget));
+        }
+        return all;
+    }
+
+    public synchronized Note getNote(String fileName) {
+        return notes.get(fileName);
+    }
+
+    // Small notes travel inline; large ones as metadata the client then pulls in chunks. With held set,
+    // content in it also goes as metadata, and inlined content is added to it so it travels only once.
+    // inlineBudget[0] is what one response may still inline, so it stays within the client's frame limit.
+    private FileData describe(String fileName, Note note, Set<String> held, long[] inlineBudget)
+            throws IOException {
+        if (ChunkedTransfer.shouldStream(note.size) || note.size > inlineBudget[0]
+                || held != null && !held.add(note.hash)) {
+            return new FileData(fileName, note.size, note.version, note.hash);
+        }
+        inlineBudget[0] -= note.size;
+        return new FileData(fileName, Files.readString(blobPath(note.hash)), note.version, note.hash);
+    }
+
+    private void put(String fileName, String hash, long size) throws IOException {
+        Note previous = notes.get(fileName);
+        Tombstone tombstone = tombstones.remove(fileName);
+        long version = previous != null ? previous.version + 1 : tombstone != null ? tombstone.version + 1 : 1;
+        seq++;
+        notes.put(fileName, new Note(hash, size, version, seq));
+        appendLog(RECORD_PUT, fileName, hash, size, version);
+        blobRefs.merge(hash, 1, Integer::sum);
+        if (previous != null) {
+            release(previous.hash);
+        }
+    }
+
+    private Path blobPath(String hash) {
+        return dir.resolve(BLOB_DIR).resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    // Deletes the blob once no note refers to it
+    private void release(String hash) throws IOException {
+        if (blobRefs.merge(hash, -1, Integer::sum) <= 0) {
+            blobRefs.remove(hash);
+            Files.deleteIfExists(blobPath(hash));
+        }
+    }
+
+    private void appendLog(byte kind, String fileName, String hash, long size, long version) throws IOException {
+        writeRecord(log, kind, fileName, hash, size, version, seq);
+        log.flush();
+        logRecords++;
+        if (logRecords > 1024 && logRecords > 4L * (notes.size() + tombstones.size())) {
+            compactLog();
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, byte kind, String fileName, String hash, long size,
+            long version, long seq) throws IOException {
+        out.writeByte(kind);
+        out.writeUTF(fileName);
+        out.writeUTF(hash);
+        out.writeLong(size);
+        out.writeLong(version);
+        out.writeLong(seq);
+    }
+
+    // Rewrites the log as one record per live note and tombstone, in sequence order
+    private void compactLog() throws IOException {
+        log.close();
+        Path temp = dir.resolve(CHANGE_LOG + ".tmp");
+        List<Object[]> records = new ArrayList<>();
+        for (Map.Entry<String, Note> entry : notes.entrySet()) {
+            Note note = entry.getValue();
+            records.add(new Object[] { RECORD_PUT, entry.getKey(), note.hash, note.size, note.version, note.seq });
+        }
+        for (Map.Entry<String, Tombstone> entry : tombstones.entrySet()) {
+            Tombstone tombstone = entry.getValue();
+            records.add(new Object[] { RECORD_DELETE, entry.getKey(), tombstone.hash, 0L, tombstone.version,
+                    tombstone.seq });
+        }
+        records.sort(Comparator.comparingLong(record -> (Long) record[5]));
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            for (Object[] record : records) {
+                writeRecord(out, (Byte) record[0], (String) record[1], (String) record[2], (Long) record[3],
+                        (Long) record[4], (Long) record[5]);
+            }
+        }
+        Files.move(temp, dir.resolve(CHANGE_LOG), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logRecords = records.size();
+        log = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(dir.resolve(CHANGE_LOG), StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+    }
+
+    // Returns false if the log ended in a torn record
+    private boolean replayLog() throws IOException {
+        Path path = dir.resolve(CHANGE_LOG);
+        if (!Files.isRegularFile(path)) {
+            return true;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (true) {
+                byte kind;
+                try {
+                    kind = in.readByte();
+                } catch (EOFException e) {
+                    return true;
+                }
+                String fileName = in.readUTF();
+                String hash = in.readUTF();
+                long size = in.readLong();
+                long version = in.readLong();
+                long recordSeq = in.readLong();
+                if (kind == RECORD_PUT) {
+                    tombstones.remove(fileName);
+                    notes.put(fileName, new Note(hash, size, version, recordSeq));
+                } else {
+                    notes.remove(fileName);
+                    tombstones.put(fileName, new Tombstone(hash, version, recordSeq));
+                }
+                seq = Math.max(seq, recordSeq);
+                logRecords++;
+            }
+        } catch (EOFException e) {
+            // A record torn by a crash; everything before it stands
+            return false;
+        }
+    }
+}
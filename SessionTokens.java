@@ -0,0 +1,231 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Signed, expiring session tokens: "1.<username>.<expiry millis>.<HMAC-SHA256>", base64url where needed.
+// Issued by the sync server when it has checked a LOGIN's password itself, and verified by it without a
+// database round trip whenever a connection authenticates. Only the server holds the key, in
+// -Djnote.auth.keyFile (default ~/.jnote/session.key, created on first use and readable only by its owner);
+// clients just store the token, so they can't mint one for somebody else.
+class SessionTokens {
+    static final long TOKEN_TTL_MILLIS = TimeUnit.DAYS.toMillis(7);
+    // Tokens already verified are trusted for this long, so a reconnect storm costs one HMAC per client
+    private static final long VERIFIED_TTL_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final int MAX_VERIFIED = 4096;
+    private static final String VERSION = "1";
+
+    private static class Verified {
+        final String username;
+        final long expiresNanos;
+        // The token's own expiry, which the cache must not outlive
+        final long tokenExpiresAt;
+
+        Verified(String username, long expiresNanos, long tokenExpiresAt) {
+            this.username = username;
+            this.expiresNanos = expiresNanos;
+            this.tokenExpiresAt = tokenExpiresAt;
+        }
+    }
+
+    private final byte[] key;
+    private final Map<String, Verified> verified = new ConcurrentHashMap<>();
+
+    SessionTokens(byte[] key) {
+        this.key = key.clone();
+    }
+
+    public static SessionTokens fromSystemProperties() throws IOException {
+        return new SessionTokens(loadOrCreateKey(Paths.get(System.getProperty("jnote.auth.keyFile",
+                Paths.get(System.getProperty("user.home"), ".jnote", "session.key").toString()))));
+    }
+
+    public String issue(String username) {
+        String body = VERSION + "." + encode(username.getBytes(StandardCharsets.UTF_8)) + "."
+                + (System.currentTimeMillis() + TOKEN_TTL_MILLIS);
+        return body + "." + encode(sign(body));
+    }
+
+    // The username the token was issued to, or null if it is malformed, forged or expired
+    public String verify(String token) {
+        if (token == null) {
+            return null;
+        }
+        Verified cached = verified.get(token);
+        if (cached != null && cached.expiresNanos - System.nanoTime() > 0
+                && cached.tokenExpiresAt >= System.currentTimeMillis()) {
+            return cached.username;
+        }
+        String username = check(token);
+        if (username != null) {
+            if (verified.size() >= MAX_VERIFIED) {
+                verified.clear();
+            }
+            verified.put(token, new Verified(username, System.nanoTime() + VERIFIED_TTL_NANOS, expiresAt(token)));
+        } else {
+            verified.remove(token);
+        }
+        return username;
+    }
+
+    private String check(String token) {
+        String[] parts = token.split("\\.");
+        if (parts.length != 4 || !parts[0].equals(VERSION)) {
+            return null;
+        }
+        try {
+            String body = parts[0] + "." + parts[1] + "." + parts[2];
+            if (!MessageDigest.isEqual(sign(body), Base64.getUrlDecoder().decode(parts[3]))
+                    || Long.parseLong(parts[2]) < System.currentTimeMillis()) {
+                return null;
+            }
+            return new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // When a well-formed token stops being accepted (epoch millis), or -1; says nothing about the signature
+    public static long expiresAt(String token) {
+        String[] parts = token == null ? new String[0] : token.split("\\.");
+        if (parts.length != 4 || !parts[0].equals(VERSION)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(parts[2]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Who an unexpired token was issued to, WITHOUT checking the signature, which only the server can.
+    // Good enough for the client to reopen its own local vault; the server still verifies the token.
+    public static String claimedUser(String token) {
+        if (expiresAt(token) < System.currentTimeMillis()) {
+            return null;
+        }
+        try {
+            return new String(Base64.getUrlDecoder().decode(token.split("\\.")[1]), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private byte[] sign(String body) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(body.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    // Whoever creates the file first wins; everyone else reads what it wrote. The key is written to an
+    // owner-only temp file and moved into place, so it is never visible half-written or to other users.
+    private static byte[] loadOrCreateKey(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            byte[] key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            Files.createDirectories(path.getParent());
+            Path temp;
+            try {
+                temp = Files.createTempFile(path.getParent(), ".session", ".tmp",
+                        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system: the profile directory's ACLs apply
+                temp = Files.createTempFile(path.getParent(), ".session", ".tmp");
+            }
+            try {
+                Files.write(temp, key);
+                Files.move(temp, path);
+                return key;
+            } catch (FileAlreadyExistsException e) {
+                // Created concurrently; use theirs
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        byte[] key = Files.readAllBytes(path);
+        if (key.length < 32) {
+            throw new IOException("Session key file is too short: " + path);
+        }
+        return key;
+    }
+}
+
+// Credentials the database accepted recently, so logging in again soon after (or several windows
+// logging in at once) doesn't query it again. Only a salted digest is kept, never the password, and
+// entries expire after a few minutes so a changed password is not honoured for long.
+class CredentialCache {
+    private static final long TTL_NANOS = TimeUnit.MINUTES.toNanos(5);
+    private static final int MAX_ENTRIES = 1024;
+
+    private static class Entry {
+        final byte[] digest;
+        final long expiresNanos;
+
+        Entry(byte[] digest, long expiresNanos) {
+            this.digest = digest;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+
+    private final byte[] salt = new byte[16];
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    CredentialCache() {
+        new SecureRandom().nextBytes(salt);
+    }
+
+    public boolean matches(String username, String password) {
+        Entry entry = entries.get(username);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.expiresNanos - System.nanoTime() <= 0) {
+            entries.remove(username, entry);
+            return false;
+        }
+        return MessageDigest.isEqual(entry.digest, digest(username, password));
+    }
+
+    public void put(String username, String password) {
+        if (entries.size() >= MAX_ENTRIES) {
+            entries.clear();
+        }
+        entries.put(username, new Entry(digest(username, password), System.nanoTime() + TTL_NANOS));
+    }
+
+    public void invalidate(String username) {
+        entries.remove(username);
+    }
+
+    private byte[] digest(String username, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            digest.update(username.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
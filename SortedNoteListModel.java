@@ -0,0 +1,93 @@
+import javax.swing.AbstractListModel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+// Sorted list of note names that only fires targeted insert/remove events.
+// Must be used from the Event Dispatch Thread, like any other Swing model.
+class SortedNoteListModel extends AbstractListModel<String> {
+    private final List<String> names = new ArrayList<>();
+
+    @Override
+    public int getSize() {
+        return names.size();
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return names.get(index);
+    }
+
+    // Adds the name at its sorted position; no-op if already present
+    public void add(String name) {
+        int index = Collections.binarySearch(names, name);
+        if (index < 0) {
+            index = -index - 1;
+            names.add(index, name);
+            fireIntervalAdded(this, index, index);
+        }
+    }
+
+    // Removes the name if present
+    public void remove(String name) {
+        int index = Collections.binarySearch(names, name);
+        if (index >= 0) {
+            names.remove(index);
+            fireIntervalRemoved(this, index, index);
+        }
+    }
+
+    // Merges many names at once, firing one insert event per contiguous run of new names rather than one per
+    // name, so a large sync doesn't flood the EDT and the selection survives
+    public void addAll(Collection<String> newNames) {
+        List<String> added = new ArrayList<>();
+        for (String name : new TreeSet<>(newNames)) {
+            if (Collections.binarySearch(names, name) < 0) {
+                added.add(name);
+            }
+        }
+        if (added.isEmpty()) {
+            return;
+        }
+        List<String> merged = new ArrayList<>(names.size() + added.size());
+        List<int[]> runs = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (j < added.size()) {
+            if (i < names.size() && names.get(i).compareTo(added.get(j)) < 0) {
+                merged.add(names.get(i++));
+                continue;
+            }
+            int start = merged.size();
+            while (j < added.size() && (i == names.size() || added.get(j).compareTo(names.get(i)) < 0)) {
+                merged.add(added.get(j++));
+            }
+            runs.add(new int[] { start, merged.size() - 1 });
+        }
+        merged.addAll(names.subList(i, names.size()));
+        names.clear();
+        names.addAll(merged);
+        for (int[] run : runs) {
+            fireIntervalAdded(this, run[0], run[1]);
+        }
+    }
+
+    public boolean contains(String name) {
+        return Collections.binarySearch(names, name) >= 0;
+    }
+
+    // Replaces the whole list with a single contents-changed event (initial load / resync)
+    public void setAll(Collection<String> newNames) {
+        int oldSize = names.size();
+        names.clear();
+        names.addAll(new TreeSet<>(newNames));
+        if (oldSize > 0) {
+            fireIntervalRemoved(this, 0, oldSize - 1);
+        }
+        if (!names.isEmpty()) {
+            fireIntervalAdded(this, 0, names.size() - 1);
+        }
+    }
+}
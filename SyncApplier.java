@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Writes the inline notes of a sync response into the vault on a small bounded pool, so a first sync of a
+// large vault isn't one small-file write after another. Each note goes to a temp file that is renamed over
+// the target, so a crash or a concurrent reader never sees a half-written note.
+// Pool size comes from -Djnote.sync.writers (default twice the cores, capped at 8).
+class SyncApplier {
+    // Notes per task: enough to amortise the hand-off, small enough to spread a mid-sized sync
+    private static final int BATCH_SIZE = 64;
+
+    interface Progress {
+        void update(int done, int total);
+    }
+
+    private final ExecutorService writers;
+
+    SyncApplier() {
+        this(Integer.getInteger("jnote.sync.writers",
+                Math.min(8, Runtime.getRuntime().availableProcessors() * 2)));
+    }
+
+    SyncApplier(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        writers = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "jnote-sync-writer-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Writes every file and runs onWritten for each one on the writer thread that wrote it, so it must be
+    // thread-safe. Progress is reported after each batch. Completes exceptionally with the first failure,
+    // after the other batches have finished.
+    CompletableFuture<Void> apply(Path vault, List<FileData> files, Consumer<FileData> onWritten,
+            Progress progress) {
+        int total = files.size();
+        AtomicInteger done = new AtomicInteger();
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        for (int from = 0; from < total; from += BATCH_SIZE) {
+            List<FileData> batch = files.subList(from, Math.min(total, from + BATCH_SIZE));
+            batches.add(CompletableFuture.runAsync(() -> {
+                for (FileData fileData : batch) {
+                    try {
+                        writeAtomically(vault.resolve(fileData.getFileName()), fileData.getContent());
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                    onWritten.accept(fileData);
+                }
+                progress.update(done.addAndGet(batch.size()), total);
+            }, writers));
+        }
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0]));
+    }
+
+    // Puts a note the vault already holds into place under another name instead of fetching it again.
+    // Completes with false, leaving the target alone, if the source is gone or no longer has expectedHash.
+    CompletableFuture<Boolean> copy(Path source, Path target, String expectedHash) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                Path temp = tempFor(target);
+                try {
+                    Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING);
+                    if (!SyncManifest.hashFile(temp).equals(expectedHash)) {
+                        return false;
+                    }
+                    moveIntoPlace(temp, target);
+                    return true;
+                } finally {
+                    Files.deleteIfExists(temp);
+                }
+            } catch (NoSuchFileException e) {
+                return false;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, writers);
+    }
+
+    static void writeAtomically(Path target, String content) throws IOException {
+        long start = Metrics.start();
+        Path temp = tempFor(target);
+        try {
+            Files.writeString(temp, content);
+            moveIntoPlace(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        Metrics.record("vault.write", start);
+        Metrics.count("vault.bytesWritten", content.length());
+    }
+
+    // A fresh file per write, so concurrent writes to one note never share a temp file. Hidden and not
+    // .txt, so neither the vault watcher nor a rescan picks it up
+    private static Path tempFor(Path target) throws IOException {
+        return Files.createTempFile(target.toAbsolutePath().getParent(), "." + target.getFileName() + ".",
+                ".sync-tmp");
+    }
+
+    private static void moveIntoPlace(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    void shutdown() {
+        writers.shutdown();
+    }
+}
@@ -0,0 +1,130 @@
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Load generator for SyncServer: many simulated desktops, each on its own connection and user, keeping a
+// few requests in flight with a mix of saves, small patches and delta syncs. Prints throughput and
+// latency percentiles (to the nearest power of two microseconds).
+//
+// Run with: java SyncLoadDriver [host] [port] [clients] [seconds] [inFlightPerClient]
+class SyncLoadDriver {
+    private static final int NOTES_PER_CLIENT = 20;
+    private static final int NOTE_SIZE = 2048;
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    // Bucket i counts requests that took [2^i, 2^(i+1)) microseconds
+    private final AtomicLongArray latencyBuckets = new AtomicLongArray(40);
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : ConnectionManager.DEFAULT_HOST;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : ConnectionManager.DEFAULT_PORT;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+        int inFlight = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+        new SyncLoadDriver().run(host, port, clients, seconds, inFlight);
+    }
+
+    void run(String host, int port, int clients, int seconds, int inFlight) throws Exception {
+        List<RequestPipeline> pipelines = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Socket socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            pipelines.add(new RequestPipeline(MessageChannel.open(socket.getInputStream(), socket.getOutputStream())));
+        }
+        System.out.println(clients + " clients connected");
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        CountDownLatch finished = new CountDownLatch(clients * inFlight);
+        for (int i = 0; i < clients; i++) {
+            String[] contents = new String[NOTES_PER_CLIENT];
+            for (int slot = 0; slot < inFlight; slot++) {
+                next(pipelines.get(i), "load-" + i, contents, new Random(), deadline, finished);
+            }
+        }
+        finished.await();
+        for (RequestPipeline pipeline : pipelines) {
+            pipeline.close();
+        }
+        report(seconds);
+    }
+
+    // One request slot: sends the next request when the previous answer arrives, so thousands of slots
+    // need no threads of their own
+    private void next(RequestPipeline pipeline, String username, String[] contents, Random random, long deadline,
+            CountDownLatch finished) {
+        if (System.nanoTime() >= deadline) {
+            finished.countDown();
+            return;
+        }
+        int note = random.nextInt(NOTES_PER_CLIENT);
+        String fileName = "note-" + note + ".txt";
+        FileOperation op;
+        int kind = random.nextInt(10);
+        synchronized (contents) {
+            if (kind < 2) {
+                op = new FileOperation(OperationType.SYNC_DELTA_REQUEST, username, "",
+                        new SyncDelta(0, Collections.emptyMap()));
+            } else if (kind < 5 && contents[note] != null) {
+                String updated = contents[note] + "x";
+                op = new FileOperation(OperationType.UPDATE_FILE_PATCH, username, fileName,
+                        FilePatch.diff(contents[note], updated));
+                contents[note] = updated;
+            } else {
+                contents[note] = randomText(random);
+                op = new FileOperation(OperationType.UPDATE_FILE, username, fileName, contents[note]);
+            }
+        }
+        long start = System.nanoTime();
+        pipeline.submit(op).orTimeout(30, TimeUnit.SECONDS).whenComplete((response, error) -> {
+            if (error != null) {
+                failed.increment();
+            } else {
+                completed.increment();
+                if ("HASH_MISMATCH".equals(response.getContent())) {
+                    // Another slot rewrote the note in between; send it in full next time
+                    synchronized (contents) {
+                        contents[note] = null;
+                    }
+                }
+            }
+            long micros = Math.max(1, (System.nanoTime() - start) / 1000);
+            latencyBuckets.incrementAndGet(Math.min(63 - Long.numberOfLeadingZeros(micros), latencyBuckets.length() - 1));
+            next(pipeline, username, contents, random, deadline, finished);
+        });
+    }
+
+    private static String randomText(Random random) {
+        StringBuilder text = new StringBuilder(NOTE_SIZE);
+        while (text.length() < NOTE_SIZE) {
+            text.append("word").append(random.nextInt(1000)).append(' ');
+        }
+        return text.toString();
+    }
+
+    private void report(int seconds) {
+        long total = completed.sum();
+        System.out.printf("%d requests in %ds (%.0f/s), %d failed%n", total, seconds, total / (double) seconds,
+                failed.sum());
+        long count = 0;
+        for (int i = 0; i < latencyBuckets.length(); i++) {
+            count += latencyBuckets.get(i);
+        }
+        for (double percentile : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+            long seen = 0;
+            for (int i = 0; i < latencyBuckets.length(); i++) {
+                seen += latencyBuckets.get(i);
+                if (seen >= count * percentile) {
+                    System.out.printf("p%s < %d us%n", percentile * 100, 1L << (i + 1));
+                    break;
+                }
+            }
+        }
+    }
+}
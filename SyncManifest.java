@@ -0,0 +1,237 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+
+// Local metadata for every note in a vault: size, mtime, content hash and last known server version,
+// plus the server sync cursor and the notes changed locally since the server last saw them. It lives
+// inside the vault and survives logout, so the dashboard can render straight from it on startup and
+// reconcile with the disk and the server in the background.
+// The vault and this file are restricted to the owning OS user where the file system allows it.
+// Synchronized because sync responses are applied off the EDT while saves happen on it.
+class SyncManifest {
+    private static final String MANIFEST_FILE = ".manifest";
+    private static final int MAGIC = 0x4A4E4D46; // "JNMF"
+    private static final int FORMAT_VERSION = 3;
+
+    static class Entry {
+        final String hash;
+        final long size;
+        final long modified;
+        final long version;
+
+        Entry(String hash, long size, long modified, long version) {
+            this.hash = hash;
+            this.size = size;
+            this.modified = modified;
+            this.version = version;
+        }
+    }
+
+    private final File folder;
+    private final File file;
+    private long cursor;
+    private final Map<String, Entry> entries = new HashMap<>();
+    // Notes written or found changed locally and not yet reported to the server in a sync
+    private final Set<String> localChanges = new HashSet<>();
+
+    private SyncManifest(File folder) {
+        this.folder = folder;
+        this.file = new File(folder, MANIFEST_FILE);
+    }
+
+    public static SyncManifest load(File notesFolder) {
+        restrictToOwner(notesFolder.toPath(), "rwx------");
+        SyncManifest manifest = new SyncManifest(notesFolder);
+        if (manifest.file.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest.file)))) {
+                manifest.read(in);
+            } catch (IOException e) {
+                // Corrupt manifest: start from scratch and let the server send everything
+                e.printStackTrace();
+                manifest.cursor = 0;
+                manifest.entries.clear();
+                manifest.localChanges.clear();
+            }
+        }
+        return manifest;
+    }
+
+    public synchronized void save() throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            write(out);
+        }
+        restrictToOwner(temp.toPath(), "rw-------");
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Compares the recorded size/mtime with the disk, re-hashing only notes that changed while we weren't
+    // looking. Returns the names of notes that were added, changed or removed.
+    public Set<String> reconcileWithDisk() throws IOException {
+        File[] txtFiles = folder.listFiles((dir, name) -> name.endsWith(".txt"));
+        Set<String> onDisk = new HashSet<>();
+        Set<String> changed = new HashSet<>();
+        if (txtFiles != null) {
+            for (File note : txtFiles) {
+                String fileName = note.getName();
+                onDisk.add(fileName);
+                Entry entry = getEntry(fileName);
+                if (entry == null || entry.size != note.length() || entry.modified != note.lastModified()) {
+                    String hash = hashFile(note.toPath());
+                    synchronized (this) {
+                        entries.put(fileName, new Entry(hash, note.length(), note.lastModified(),
+                                entry == null ? 0 : entry.version));
+                        localChanges.add(fileName);
+                    }
+                    changed.add(fileName);
+                }
+            }
+        }
+        synchronized (this) {
+            for (Iterator<String> it = entries.keySet().iterator(); it.hasNext();) {
+                String fileName = it.next();
+                if (!onDisk.contains(fileName)) {
+                    it.remove();
+                    localChanges.remove(fileName);
+                    changed.add(fileName);
+                }
+            }
+        }
+        return changed;
+    }
+
+    public synchronized long getCursor() {
+        return cursor;
+    }
+
+    public synchronized void setCursor(long cursor) {
+        this.cursor = cursor;
+    }
+
+    public synchronized Map<String, String> getHashes() {
+        Map<String, String> hashes = new HashMap<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            hashes.put(entry.getKey(), entry.getValue().hash);
+        }
+        return hashes;
+    }
+
+    // Hashes of the notes changed locally since the last sync, all the server needs beyond the cursor
+    public synchronized Map<String, String> getLocalChanges() {
+        Map<String, String> hashes = new HashMap<>();
+        for (String fileName : localChanges) {
+            Entry entry = entries.get(fileName);
+            if (entry != null) {
+                hashes.put(fileName, entry.hash);
+            }
+        }
+        return hashes;
+    }
+
+    // After a sync: forgets the changes the server was told about, unless the note changed again meanwhile
+    public synchronized void clearLocalChanges(Map<String, String> reported) {
+        localChanges.removeIf(fileName -> Objects.equals(reported.get(fileName), getHash(fileName)));
+    }
+
+    public synchronized Set<String> getFileNames() {
+        return new HashSet<>(entries.keySet());
+    }
+
+    public synchronized Entry getEntry(String fileName) {
+        return entries.get(fileName);
+    }
+
+    public synchronized String getHash(String fileName) {
+        Entry entry = entries.get(fileName);
+        return entry == null ? null : entry.hash;
+    }
+
+    // Records a local write; size and mtime come from the file as it is now, the server version is kept
+    public synchronized void put(String fileName, String hash) {
+        Entry previous = entries.get(fileName);
+        record(fileName, hash, previous == null ? 0 : previous.version);
+        localChanges.add(fileName);
+    }
+
+    // Records a note as the server has it
+    public synchronized void put(String fileName, String hash, long version) {
+        record(fileName, hash, version);
+        localChanges.remove(fileName);
+    }
+
+    private void record(String fileName, String hash, long version) {
+        File note = new File(folder, fileName);
+        entries.put(fileName, new Entry(hash, note.length(), note.lastModified(), version));
+    }
+
+    public synchronized void remove(String fileName) {
+        entries.remove(fileName);
+        localChanges.remove(fileName);
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(cursor);
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry value = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeUTF(value.hash == null ? "" : value.hash);
+            out.writeLong(value.size);
+            out.writeLong(value.modified);
+            out.writeLong(value.version);
+        }
+        out.writeInt(localChanges.size());
+        for (String fileName : localChanges) {
+            out.writeUTF(fileName);
+        }
+    }
+
+    private void read(DataInputStream in) throws IOException {
+        int version = in.readInt() == MAGIC ? in.readInt() : -1;
+        if (version != FORMAT_VERSION && version != 2) {
+            throw new IOException("Unrecognized manifest format");
+        }
+        cursor = in.readLong();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String fileName = in.readUTF();
+            String hash = in.readUTF();
+            entries.put(fileName, new Entry(hash.isEmpty() ? null : hash, in.readLong(), in.readLong(), in.readLong()));
+        }
+        if (version == 2) {
+            // Local changes weren't tracked: the next sync starts over and sends every hash
+            cursor = 0;
+            return;
+        }
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            localChanges.add(in.readUTF());
+        }
+    }
+
+    // Same value as FileData.contentHash for the file's UTF-8 text, without loading it whole
+    static String hashFile(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            java.security.MessageDigest digest = java.security.MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            return FileData.toHex(digest.digest());
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void restrictToOwner(Path path, String permissions) {
+        try {
+            Files.setPosixFilePermissions(path, PosixFilePermissions.fromString(permissions));
+        } catch (UnsupportedOperationException | IOException e) {
+            // Not a POSIX file system (e.g. Windows): the per-user profile directory ACLs apply instead
+        }
+    }
+}
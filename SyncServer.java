@@ -0,0 +1,555 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Reference sync server for the FileOperation protocol (BinaryChannel framing and handshake).
+// One selector thread does all socket I/O without blocking; decoding, storage and encoding run on a
+// small worker pool. Frames from one connection are handled strictly in order, frames from different
+// connections in parallel, so thousands of mostly idle desktops cost a buffer each rather than a thread.
+// After a change, the user's other connections get a CHANGE_EVENT (requestId 0) with what changed.
+//
+// Run with: java SyncServer [port]   (-Djnote.server.root=<dir>, -Djnote.server.workers=<n>,
+// -Djnote.server.requireAuth=true to only serve connections that log in or present a session token;
+// passwords are then checked against -Djnote.server.dbUrl, -Djnote.server.dbUser, -Djnote.server.dbPassword)
+class SyncServer implements Closeable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // A connection stops being read while this much output is queued for it or this many frames wait
+    private static final long MAX_QUEUED_OUTPUT = 8 * 1024 * 1024;
+    private static final int MAX_QUEUED_FRAMES = 256;
+    // Frames handled per turn before a busy connection yields its worker to others
+    private static final int FRAMES_PER_TURN = 32;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final ServerVaultStore store;
+    private final Queue<Connection> interestChanges = new ConcurrentLinkedQueue<>();
+    // Connections that have made a request as each user; they receive that user's change events
+    private final Map<String, Set<Connection>> subscribers = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+    // Null unless sessions are required: then every request must come from the user its connection
+    // authenticated as
+    private volatile SessionTokens sessionTokens;
+    // Where LOGIN passwords are checked when sessions are required, and what it accepted recently
+    private volatile javax.sql.DataSource users;
+    private final CredentialCache credentials = new CredentialCache();
+
+    public SyncServer(InetSocketAddress address, Path root, int workerThreads) throws IOException {
+        this.store = new ServerVaultStore(root);
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.workers = Executors.newFixedThreadPool(workerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "jnote-server-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static void main(String[] args) throws IOException {
+        Metrics.startExport("server");
+        int port = args.length > 0 ? Integer.parseInt(args[0])
+                : Integer.getInteger("jnote.server.port", ConnectionManager.DEFAULT_PORT);
+        Path root = Paths.get(System.getProperty("jnote.server.root",
+                Paths.get(System.getProperty("user.home"), ".jnote-server").toString()));
+        int workerThreads = Integer.getInteger("jnote.server.workers",
+                Runtime.getRuntime().availableProcessors() * 2);
+        try (SyncServer server = new SyncServer(new InetSocketAddress(port), root, workerThreads)) {
+            if (Boolean.getBoolean("jnote.server.requireAuth")) {
+                server.requireSessions(SessionTokens.fromSystemProperties(), new PooledDataSource(
+                        System.getProperty("jnote.server.dbUrl", "jdbc:mysql://localhost:3306/jnote"),
+                        System.getProperty("jnote.server.dbUser", "root"),
+                        System.getProperty("jnote.server.dbPassword", "root"), 4, 16));
+            }
+            System.out.println("Sync server listening on port " + server.getPort() + ", storage in " + root);
+            server.run();
+        }
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    // The selector loop; returns once close() is called
+    public void run() throws IOException {
+        while (running) {
+            try {
+                selector.select();
+            } catch (ClosedSelectorException e) {
+                return;
+            }
+            Connection changed;
+            while ((changed = interestChanges.poll()) != null) {
+                changed.updateInterest();
+            }
+            if (!running) {
+                return;
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        workers.shutdown();
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException e) {
+            // Already shutting down
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            // Our half of the symmetric handshake goes out straight away
+            ByteBuffer handshake = ByteBuffer.allocate(BinaryChannel.HANDSHAKE_SIZE);
+            handshake.putInt(BinaryChannel.HANDSHAKE_MAGIC).put(BinaryChannel.offeredFeatures()).flip();
+            connection.queue(handshake);
+        }
+    }
+
+    private void requestInterestUpdate(Connection connection) {
+        interestChanges.add(connection);
+        selector.wakeup();
+    }
+
+    public void requireSessions(SessionTokens tokens, javax.sql.DataSource users) {
+        this.users = users;
+        this.sessionTokens = tokens;
+    }
+
+    // Applies one request and builds its response; runs on a worker
+    private FileOperation handle(FileOperation op, Connection origin) throws IOException {
+        if (op.getType() == OperationType.HEARTBEAT) {
+            return reply(op, OperationType.HEARTBEAT, "SUCCESS", null);
+        }
+        SessionTokens tokens = sessionTokens;
+        if (op.getType() == OperationType.LOGIN) {
+            return login(op, origin, tokens);
+        }
+        if (op.getType() == OperationType.AUTHENTICATE) {
+            // Without a key to check against, any token is accepted and nothing is enforced
+            String user = tokens == null ? op.getUsername() : tokens.verify(op.getContent());
+            origin.authenticatedUser = user;
+            return reply(op, op.getType(), user != null && user.equals(op.getUsername()) ? "SUCCESS" : "FAILED",
+                    null);
+        }
+        // A new account announces itself before it has a session; its vault is created on first use, so the
+        // announcement is acknowledged without touching any vault or subscribing to its changes
+        if (op.getType() == OperationType.USER_REGISTERED) {
+            return reply(op, op.getType(), "SUCCESS", null);
+        }
+        if (tokens != null
+                && (op.getUsername() == null || !op.getUsername().equals(origin.authenticatedUser))) {
+            return reply(op, op.getType(), "UNAUTHORIZED", null);
+        }
+        UserVault vault = store.vault(op.getUsername());
+        // Pushes carry note contents, so only the signed-in user's own connections receive them
+        if (tokens == null || op.getUsername().equals(origin.authenticatedUser)) {
+            origin.subscribe(op.getUsername());
+        }
+        FileOperation remembered = vault.rememberedResponse(op.getIdempotencyKey());
+        if (remembered != null) {
+            return reply(op, remembered.getType(), remembered.getContent(), remembered.getData());
+        }
+        long before = vault.getSeq();
+        FileOperation response = apply(vault, op);
+        vault.remember(op.getIdempotencyKey(), response);
+        if (vault.getSeq() != before) {
+            publish(op.getUsername(), vault, before, origin);
+        }
+        return response;
+    }
+
+    // Checks the password itself and, if it is right, hands out a token the client presents from then on.
+    // Without sessions required there is nothing to check or issue.
+    private FileOperation login(FileOperation op, Connection origin, SessionTokens tokens) throws IOException {
+        String username = op.getUsername();
+        String password = op.getContent();
+        if (tokens == null) {
+            origin.authenticatedUser = username;
+            return reply(op, op.getType(), "SUCCESS", null);
+        }
+        if (username == null || password == null) {
+            return reply(op, op.getType(), "FAILED", null);
+        }
+        boolean valid = credentials.matches(username, password);
+        if (!valid) {
+            try (java.sql.Connection conn = users.getConnection();
+                    PreparedStatement stmt = conn
+                            .prepareStatement("SELECT 1 FROM users WHERE username = ? AND password = ?")) {
+                stmt.setQueryTimeout(AuthWorker.TIMEOUT_SECONDS);
+                stmt.setString(1, username);
+                stmt.setString(2, password);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    valid = rs.next();
+                }
+            } catch (SQLException e) {
+                throw new IOException("Could not check the password of " + username, e);
+            }
+            if (valid) {
+                credentials.put(username, password);
+            }
+        }
+        if (!valid) {
+            origin.authenticatedUser = null;
+            return reply(op, op.getType(), "FAILED", null);
+        }
+        String token = tokens.issue(username);
+        origin.authenticatedUser = username;
+        return reply(op, op.getType(), "SUCCESS", new SessionGrant(token, SessionTokens.expiresAt(token)));
+    }
+
+    // Pushes what changed to the user's other devices. It may include a concurrent change from another
+    // of their connections too; applying a change twice is harmless.
+    private void publish(String username, UserVault vault, long before, Connection origin) throws IOException {
+        Set<Connection> connections = subscribers.get(username);
+        if (connections == null || connections.size() < 2 && connections.contains(origin)) {
+            return;
+        }
+        FileOperation event = new FileOperation(OperationType.CHANGE_EVENT, username, "", null, vault.eventsSince(before));
+        for (Connection connection : connections) {
+            if (connection != origin) {
+                connection.send(event);
+            }
+        }
+    }
+
+    private FileOperation apply(UserVault vault, FileOperation op) throws IOException {
+        String fileName = op.getFileName();
+        switch (op.getType()) {
+            case CREATE_FILE:
+                checkFileName(fileName);
+                vault.create(fileName, op.getContent());
+                return reply(op, op.getType(), "SUCCESS", null);
+            case UPDATE_FILE:
+                checkFileName(fileName);
+                vault.write(fileName, op.getContent() == null ? "" : op.getContent());
+                return reply(op, op.getType(), "SUCCESS", null);
+            case UPDATE_FILE_PATCH:
+                checkFileName(fileName);
+                boolean patched = vault.patch(fileName, (FilePatch) op.getData());
+                return reply(op, op.getType(), patched ? "SUCCESS" : "HASH_MISMATCH", null);
+            case DELETE_FILE:
+                checkFileName(fileName);
+                vault.delete(fileName);
+                return reply(op, op.getType(), "SUCCESS", null);
+            case DELETE_MULTIPLE:
+                if (op.getFileNames() != null) {
+                    for (String name : op.getFileNames()) {
+                        checkFileName(name);
+                        vault.delete(name);
+                    }
+                }
+                return reply(op, op.getType(), "SUCCESS", null);
+            case SYNC_REQUEST:
+                return reply(op, OperationType.SYNC_RESPONSE, "SUCCESS", vault.allNotes());
+            case SYNC_DELTA_REQUEST: {
+                SyncDelta request = (SyncDelta) op.getData();
+                if (request != null && request.getCursor() > vault.getSeq()) {
+                    // Not a cursor this vault ever handed out (restored or reset since): the client starts over
+                    return reply(op, OperationType.SYNC_DELTA_RESPONSE, "CURSOR_UNKNOWN", null);
+                }
+                SyncDelta delta = request == null ? vault.changesSince(0, null)
+                        : vault.changesSince(request.getCursor(), request.getKnownHashes());
+                return reply(op, OperationType.SYNC_DELTA_RESPONSE, "SUCCESS", delta);
+            }
+            case UPDATE_FILE_CHUNK: {
+                checkFileName(fileName);
+                FileChunk chunk = (FileChunk) op.getData();
+                long next = vault.receiveChunk(fileName, chunk);
+                return reply(op, OperationType.FILE_CHUNK, "SUCCESS",
+                        new FileChunk(chunk.getTransferId(), next, chunk.getTotalSize(), null, 0));
+            }
+            case FILE_CHUNK_REQUEST: {
+                checkFileName(fileName);
+                FileChunk request = (FileChunk) op.getData();
+                return reply(op, OperationType.FILE_CHUNK, "SUCCESS",
+                        vault.readChunk(fileName, request.getOffset(), ChunkedTransfer.CHUNK_SIZE));
+            }
+            case BATCH: {
+                @SuppressWarnings("unchecked")
+                List<FileOperation> ops = (List<FileOperation>) op.getData();
+                byte[] statuses = new byte[ops == null ? 0 : ops.size()];
+                for (int i = 0; i < statuses.length; i++) {
+                    FileOperation inner = ops.get(i);
+                    if (inner.getType() == OperationType.BATCH || !op.getUsername().equals(inner.getUsername())) {
+                        statuses[i] = BatchResult.SKIPPED;
+                        continue;
+                    }
+                    try {
+                        FileOperation result = apply(vault, inner);
+                        statuses[i] = "SUCCESS".equals(result.getContent()) ? BatchResult.OK : BatchResult.FAILED;
+                    } catch (IOException | RuntimeException e) {
+                        statuses[i] = BatchResult.FAILED;
+                    }
+                }
+                return reply(op, op.getType(), "SUCCESS", new BatchResult(statuses));
+            }
+            default:
+                return reply(op, op.getType(), "UNSUPPORTED", null);
+        }
+    }
+
+    private static void checkFileName(String fileName) throws IOException {
+        if (!ServerVaultStore.isSafeFileName(fileName)) {
+            throw new IOException("Invalid file name");
+        }
+    }
+
+    private static FileOperation reply(FileOperation request, OperationType type, String content, Object data) {
+        FileOperation response = new FileOperation(type, request.getUsername(), request.getFileName(), content, data);
+        response.setRequestId(request.getRequestId());
+        return response;
+    }
+
+    // Per-socket state. Reading and writing happen on the selector thread; frames are queued for a
+    // worker, and at most one worker at a time drains a connection's queue.
+    private class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final Deque<byte[]> inbound = new ArrayDeque<>();
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicLong queuedOutput = new AtomicLong();
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final Inflater inflater = new Inflater();
+        private SelectionKey key;
+        private boolean handshaken;
+        private boolean compress;
+        private byte[] frame;
+        private int frameFilled;
+        // Users this connection has acted as
+        private final Set<String> users = ConcurrentHashMap.newKeySet();
+        private volatile String authenticatedUser;
+        // Guarded by inbound
+        private boolean draining;
+        private volatile boolean closed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void onReadable() throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            while (true) {
+                if (!handshaken) {
+                    if (readBuffer.remaining() < BinaryChannel.HANDSHAKE_SIZE) {
+                        break;
+                    }
+                    if (readBuffer.getInt() != BinaryChannel.HANDSHAKE_MAGIC) {
+                        throw new IOException("Peer did not answer the binary protocol handshake");
+                    }
+                    byte agreed = (byte) (BinaryChannel.offeredFeatures() & readBuffer.get());
+                    compress = (agreed & BinaryChannel.FEATURE_DEFLATE) != 0;
+                    handshaken = true;
+                    continue;
+                }
+                if (frame == null) {
+                    if (readBuffer.remaining() < 4) {
+                        break;
+                    }
+                    int length = readBuffer.getInt();
+                    if (length < 1 || length > BinaryCodec.MAX_FRAME_SIZE) {
+                        throw new IOException("Invalid frame length: " + length);
+                    }
+                    frame = new byte[length];
+                    frameFilled = 0;
+                }
+                int count = Math.min(readBuffer.remaining(), frame.length - frameFilled);
+                readBuffer.get(frame, frameFilled, count);
+                frameFilled += count;
+                if (frameFilled < frame.length) {
+                    break;
+                }
+                enqueue(frame);
+                frame = null;
+            }
+            readBuffer.compact();
+            updateInterest();
+        }
+
+        void onWritable() throws IOException {
+            ByteBuffer head;
+            while ((head = outbound.peek()) != null) {
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    break;
+                }
+                outbound.poll();
+                queuedOutput.addAndGet(-head.capacity());
+            }
+            updateInterest();
+        }
+
+        // Selector thread only
+        void updateInterest() {
+            if (closed || !key.isValid()) {
+                return;
+            }
+            boolean readable;
+            synchronized (inbound) {
+                readable = inbound.size() < MAX_QUEUED_FRAMES;
+            }
+            readable &= queuedOutput.get() < MAX_QUEUED_OUTPUT;
+            key.interestOps((readable ? SelectionKey.OP_READ : 0) | (outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        }
+
+        private void enqueue(byte[] body) {
+            synchronized (inbound) {
+                inbound.addLast(body);
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            workers.execute(this::drain);
+        }
+
+        private void drain() {
+            for (int handled = 0; handled < FRAMES_PER_TURN; handled++) {
+                byte[] body;
+                boolean wasFull;
+                synchronized (inbound) {
+                    wasFull = inbound.size() >= MAX_QUEUED_FRAMES;
+                    body = inbound.pollFirst();
+                    if (body == null || closed) {
+                        draining = false;
+                        return;
+                    }
+                }
+                if (wasFull) {
+                    requestInterestUpdate(this);
+                }
+                try {
+                    FileOperation request = BinaryChannel.unframe(body, inflater, BinaryCodec.MAX_FRAME_SIZE);
+                    FileOperation response;
+                    long start = Metrics.start();
+                    try {
+                        response = handle(request, this);
+                    } catch (IOException | RuntimeException e) {
+                        // The request was understood but could not be applied; the connection stays up
+                        response = reply(request, request.getType(), "FAILED", null);
+                    }
+                    if (Metrics.ENABLED) {
+                        Metrics.record("server." + request.getType(), start);
+                    }
+                    send(response);
+                } catch (IOException | RuntimeException e) {
+                    // Undecodable frame (or a failure encoding the reply): the stream can't be trusted any more
+                    close();
+                    synchronized (inbound) {
+                        inbound.clear();
+                        draining = false;
+                    }
+                    return;
+                }
+            }
+            // Let other connections have the worker; pick up where we left off afterwards
+            workers.execute(this::drain);
+        }
+
+        void subscribe(String username) {
+            if (users.add(username)) {
+                // compute, not computeIfAbsent + add, so a concurrent unsubscribe can't drop the set under us
+                subscribers.compute(username, (name, connections) -> {
+                    Set<Connection> updated = connections != null ? connections : ConcurrentHashMap.newKeySet();
+                    updated.add(this);
+                    return updated;
+                });
+                if (closed) {
+                    unsubscribe();
+                }
+            }
+        }
+
+        private void unsubscribe() {
+            for (String username : users) {
+                subscribers.computeIfPresent(username, (name, connections) -> {
+                    connections.remove(this);
+                    return connections.isEmpty() ? null : connections;
+                });
+            }
+        }
+
+        void send(FileOperation op) throws IOException {
+            if (closed) {
+                return;
+            }
+            byte[] bytes;
+            synchronized (deflater) {
+                bytes = BinaryChannel.frame(op, compress ? deflater : null);
+            }
+            queue(ByteBuffer.wrap(bytes));
+        }
+
+        void queue(ByteBuffer buffer) {
+            queuedOutput.addAndGet(buffer.capacity());
+            outbound.add(buffer);
+            requestInterestUpdate(this);
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            unsubscribe();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Gone either way
+            }
+        }
+    }
+}
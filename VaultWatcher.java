@@ -0,0 +1,148 @@
+import javax.swing.SwingUtilities;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+// Watches a vault folder for .txt notes appearing or disappearing and reports them on the EDT.
+// Changes the app makes itself are also applied directly, so duplicate events must be harmless.
+// While the app writes many notes at once (a sync) watching is paused, so they don't come back as one
+// event each, or as an overflow and a full rescan; resuming reports only what else changed meanwhile.
+class VaultWatcher implements AutoCloseable {
+    private final Path folder;
+    private final WatchService watchService;
+    private final Consumer<String> onAdded;
+    private final Consumer<String> onRemoved;
+    private final Runnable onOverflow;
+    private final Thread thread;
+    // The rest guarded by this. key is null while paused
+    private WatchKey key;
+    private int paused;
+    private Set<String> beforePause;
+    private final Set<String> writtenWhilePaused = new HashSet<>();
+
+    public VaultWatcher(Path folder, Consumer<String> onAdded, Consumer<String> onRemoved, Runnable onOverflow)
+            throws IOException {
+        this.folder = folder;
+        this.onAdded = onAdded;
+        this.onRemoved = onRemoved;
+        this.onOverflow = onOverflow;
+        this.watchService = folder.getFileSystem().newWatchService();
+        this.key = folder.register(watchService, ENTRY_CREATE, ENTRY_DELETE);
+        this.thread = new Thread(this::run, "jnote-vault-watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        // Events were dropped, so only a full rescan can be trusted
+                        SwingUtilities.invokeLater(onOverflow);
+                        continue;
+                    }
+                    String fileName = event.context().toString();
+                    if (!fileName.endsWith(".txt")) {
+                        continue;
+                    }
+                    // Re-check the disk: a create may already have been undone by the time we get here
+                    report(fileName, Files.exists(folder.resolve(fileName)));
+                }
+                // A key cancelled by pause() is simply done with; the folder itself going away ends the watch
+                if (!key.reset() && key == currentKey()) {
+                    break;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed on logout
+        }
+    }
+
+    private synchronized WatchKey currentKey() {
+        return key;
+    }
+
+    private void report(String fileName, boolean exists) {
+        SwingUtilities.invokeLater(() -> {
+            if (exists) {
+                onAdded.accept(fileName);
+            } else {
+                onRemoved.accept(fileName);
+            }
+        });
+    }
+
+    // Pauses nest; any thread
+    public synchronized void pause() {
+        if (paused++ > 0) {
+            return;
+        }
+        key.cancel();
+        key = null;
+        try {
+            beforePause = listNotes();
+        } catch (IOException e) {
+            // resume() rescans instead
+            beforePause = null;
+        }
+    }
+
+    // written: the notes the app wrote while paused, which it lists itself
+    public synchronized void resume(Collection<String> written) {
+        writtenWhilePaused.addAll(written);
+        if (--paused > 0) {
+            return;
+        }
+        try {
+            // Registered before listing, so a change in between is reported twice rather than missed
+            key = folder.register(watchService, ENTRY_CREATE, ENTRY_DELETE);
+            if (beforePause == null) {
+                SwingUtilities.invokeLater(onOverflow);
+                return;
+            }
+            Set<String> now = listNotes();
+            for (String fileName : now) {
+                if (!beforePause.contains(fileName) && !writtenWhilePaused.contains(fileName)) {
+                    report(fileName, true);
+                }
+            }
+            for (String fileName : beforePause) {
+                if (!now.contains(fileName)) {
+                    report(fileName, false);
+                }
+            }
+        } catch (IOException | ClosedWatchServiceException e) {
+            // Closed on logout meanwhile
+        } finally {
+            beforePause = null;
+            writtenWhilePaused.clear();
+        }
+    }
+
+    private Set<String> listNotes() throws IOException {
+        Set<String> names = new HashSet<>();
+        try (DirectoryStream<Path> notes = Files.newDirectoryStream(folder, "*.txt")) {
+            for (Path note : notes) {
+                names.add(note.getFileName().toString());
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        thread.interrupt();
+    }
+}
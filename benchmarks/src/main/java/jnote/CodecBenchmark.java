@@ -0,0 +1,99 @@
+package jnote;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Binary framing vs Java serialization for the messages the client sends most, plus the full
+// BinaryChannel frame with deflate as negotiated on real connections.
+// Bytes on the wire are printed once per trial so both numbers come from the same run.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({ "UPDATE_FILE", "SYNC_RESPONSE" })
+    public String message;
+
+    private FileOperation op;
+    private byte[] binaryBytes;
+    private byte[] javaBytes;
+    private byte[] deflatedFrame;
+    private byte[] deflatedBody;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append("Line ").append(i).append(" of a fairly ordinary note, with some ünïcode.\n");
+        }
+        if ("UPDATE_FILE".equals(message)) {
+            op = new FileOperation(OperationType.UPDATE_FILE, "alice", "note.txt", text.toString());
+        } else {
+            List<FileData> files = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                String content = text.substring(0, 400 + i);
+                files.add(new FileData("note-" + i + ".txt", content, i, FileData.contentHash(content)));
+            }
+            op = new FileOperation(OperationType.SYNC_RESPONSE, "alice", "", files);
+        }
+        binaryBytes = BinaryCodec.encode(op);
+        javaBytes = javaEncode(op);
+        deflatedFrame = BinaryChannel.frame(op, deflater);
+        // What the reader hands to unframe: everything after the length prefix
+        deflatedBody = java.util.Arrays.copyOfRange(deflatedFrame, 4, deflatedFrame.length);
+        System.out.printf("%n[%s] bytes on wire: binary=%d deflated=%d java=%d%n", message, binaryBytes.length + 5,
+                deflatedFrame.length, javaBytes.length);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() throws IOException {
+        return BinaryCodec.encode(op);
+    }
+
+    @Benchmark
+    public byte[] encodeJava() throws IOException {
+        return javaEncode(op);
+    }
+
+    @Benchmark
+    public void decodeBinary(Blackhole bh) throws IOException {
+        bh.consume(BinaryCodec.decode(binaryBytes));
+    }
+
+    @Benchmark
+    public byte[] frameDeflated() throws IOException {
+        return BinaryChannel.frame(op, deflater);
+    }
+
+    @Benchmark
+    public void unframeDeflated(Blackhole bh) throws IOException {
+        bh.consume(BinaryChannel.unframe(deflatedBody, inflater));
+    }
+
+    @Benchmark
+    public void decodeJava(Blackhole bh) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(javaBytes))) {
+            bh.consume(in.readObject());
+        }
+    }
+
+    private static byte[] javaEncode(FileOperation op) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+            out.writeObject(op);
+        }
+        return buffer.toByteArray();
+    }
+}
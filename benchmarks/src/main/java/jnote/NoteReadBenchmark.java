@@ -0,0 +1,66 @@
+package jnote;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// What loadNoteContent pays to show a note: a Files.readString from the vault on a cache miss, a
+// NoteContentCache hit otherwise, plus the content hash computed whenever a note is written.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NoteReadBenchmark {
+
+    @Param({ "4096", "262144", "4194304" })
+    public int size;
+
+    private Path vault;
+    private Path note;
+    private NoteContentCache cache;
+    private String content;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        vault = Files.createTempDirectory("jnote-read");
+        note = vault.resolve("note.txt");
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size) {
+            text.append("A line of an ordinary note, about as long as most lines are.\n");
+        }
+        content = text.substring(0, size);
+        Files.writeString(note, content);
+        cache = new NoteContentCache("cache.notes");
+        cache.put("note.txt", content);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        VaultScanBenchmark.deleteRecursively(vault);
+    }
+
+    @Benchmark
+    public String readFromDisk() throws IOException {
+        return Files.readString(note);
+    }
+
+    @Benchmark
+    public String readFromCache() {
+        return cache.get("note.txt");
+    }
+
+    @Benchmark
+    public String hashContent() {
+        return FileData.contentHash(content);
+    }
+
+    @Benchmark
+    public String hashFileStreaming() throws IOException {
+        return SyncManifest.hashFile(note);
+    }
+}
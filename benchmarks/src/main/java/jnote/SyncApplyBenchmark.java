@@ -0,0 +1,107 @@
+package jnote;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Applying a sync response: every changed note is written to the vault, recorded in the manifest and
+// indexed for search, then the manifest is saved once. applyDelta is the old serial loop; applyDeltaParallel
+// goes through SyncApplier as App.applyChanges now does. unchangedPercent of the notes already match the
+// manifest and are skipped by hash.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SyncApplyBenchmark {
+
+    @Param({ "100", "1000" })
+    public int changed;
+
+    @Param({ "0", "90" })
+    public int unchangedPercent;
+
+    private Path vault;
+    private SyncDelta delta;
+    private SyncManifest manifest;
+    private SearchIndex index;
+    private SyncApplier applier;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        List<FileData> files = new ArrayList<>();
+        for (int i = 0; i < changed; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int line = 0; line < 40; line++) {
+                text.append("Note ").append(i).append(" line ").append(line).append(" meeting project review\n");
+            }
+            String content = text.toString();
+            files.add(new FileData("note-" + i + ".txt", content, 1, FileData.contentHash(content)));
+        }
+        delta = new SyncDelta(1, files, new ArrayList<>());
+        applier = new SyncApplier();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        applier.shutdown();
+    }
+
+    // A fresh vault per invocation, pre-seeded with the notes that are already up to date
+    @Setup(Level.Invocation)
+    public void freshVault() throws IOException {
+        vault = Files.createTempDirectory("jnote-apply");
+        manifest = SyncManifest.load(vault.toFile());
+        index = SearchIndex.load(vault.toFile());
+        int unchanged = changed * unchangedPercent / 100;
+        for (int i = 0; i < unchanged; i++) {
+            FileData file = delta.getChanged().get(i);
+            Files.writeString(vault.resolve(file.getFileName()), file.getContent());
+            manifest.put(file.getFileName(), file.getHash(), file.getVersion());
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteVault() throws IOException {
+        VaultScanBenchmark.deleteRecursively(vault);
+    }
+
+    @Benchmark
+    public SyncManifest applyDelta() throws IOException {
+        for (FileData file : delta.getChanged()) {
+            if (file.getHash().equals(manifest.getHash(file.getFileName()))) {
+                continue;
+            }
+            Files.writeString(vault.resolve(file.getFileName()), file.getContent());
+            manifest.put(file.getFileName(), file.getHash(), file.getVersion());
+            index.index(file.getFileName(), file.getContent(), file.getHash());
+        }
+        manifest.setCursor(delta.getCursor());
+        manifest.save();
+        return manifest;
+    }
+
+    @Benchmark
+    public SyncManifest applyDeltaParallel() throws IOException {
+        List<FileData> pending = new ArrayList<>();
+        for (FileData file : delta.getChanged()) {
+            if (!file.getHash().equals(manifest.getHash(file.getFileName()))) {
+                pending.add(file);
+            }
+        }
+        applier.apply(vault, pending, file -> {
+            manifest.put(file.getFileName(), file.getHash(), file.getVersion());
+            index.index(file.getFileName(), file.getContent(), file.getHash());
+        }, (done, total) -> {
+        }).join();
+        manifest.setCursor(delta.getCursor());
+        manifest.save();
+        return manifest;
+    }
+}
@@ -0,0 +1,87 @@
+package jnote;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+// Building the note list for a vault of N notes: the full directory rescan that updateNoteList does,
+// rendering from the sync manifest as the dashboard now does, and the startup reconcile of the
+// manifest against an unchanged disk.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VaultScanBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    public int notes;
+
+    private Path vault;
+    private SyncManifest manifest;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        vault = Files.createTempDirectory("jnote-scan");
+        for (int i = 0; i < notes; i++) {
+            Files.writeString(vault.resolve("note-" + i + ".txt"), "Note " + i + "\nsome text\n");
+        }
+        manifest = SyncManifest.load(vault.toFile());
+        manifest.reconcileWithDisk();
+        manifest.save();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        deleteRecursively(vault);
+    }
+
+    @Benchmark
+    public SortedNoteListModel rescanDirectory() {
+        File[] txtFiles = vault.toFile().listFiles((dir, name) -> name.endsWith(".txt"));
+        List<String> names = new ArrayList<>(txtFiles.length);
+        for (File file : txtFiles) {
+            String name = file.getName();
+            names.add(name.substring(0, name.length() - 4));
+        }
+        SortedNoteListModel model = new SortedNoteListModel();
+        model.setAll(names);
+        return model;
+    }
+
+    @Benchmark
+    public SortedNoteListModel renderFromManifest() {
+        List<String> names = new ArrayList<>();
+        for (String name : manifest.getFileNames()) {
+            names.add(name.substring(0, name.length() - 4));
+        }
+        SortedNoteListModel model = new SortedNoteListModel();
+        model.setAll(names);
+        return model;
+    }
+
+    @Benchmark
+    public int reconcileUnchanged() throws IOException {
+        return manifest.reconcileWithDisk().size();
+    }
+
+    @Benchmark
+    public SyncManifest loadManifest() {
+        return SyncManifest.load(vault.toFile());
+    }
+
+    static void deleteRecursively(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -1,5 +1,9 @@
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
+import java.util.Map;
 
 enum OperationType {
     CREATE_FILE,
@@ -7,7 +11,19 @@ enum OperationType {
     UPDATE_FILE,
     SYNC_REQUEST,
     SYNC_RESPONSE,
-    DELETE_MULTIPLE
+    DELETE_MULTIPLE,
+    SYNC_DELTA_REQUEST,
+    SYNC_DELTA_RESPONSE,
+    UPDATE_FILE_CHUNK,
+    FILE_CHUNK_REQUEST,
+    FILE_CHUNK,
+    BATCH,
+    UPDATE_FILE_PATCH,
+    HEARTBEAT,
+    USER_REGISTERED,
+    CHANGE_EVENT,
+    AUTHENTICATE,
+    LOGIN
 }
 
 class FileOperation implements Serializable {
@@ -19,6 +35,8 @@ class FileOperation implements Serializable {
     private String content;
     private Object data;
     private List<String> fileNames;
+    private long requestId;
+    private String idempotencyKey;
 
     public FileOperation(OperationType type, String username, String fileName, Object data) {
         this.type = type;
@@ -35,6 +53,15 @@ class FileOperation implements Serializable {
         this.content = content;
     }
 
+    // Used by decoders that restore every field at once
+    FileOperation(OperationType type, String username, String fileName, String content, Object data) {
+        this.type = type;
+        this.username = username;
+        this.fileName = fileName;
+        this.content = content;
+        this.data = data;
+    }
+
     // Getters
     public OperationType getType() {
         return type;
@@ -60,6 +87,24 @@ class FileOperation implements Serializable {
         return fileNames;
     }
 
+    // Correlation ID: set by the client, echoed back by the server in the response (0 = unsolicited)
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(long requestId) {
+        this.requestId = requestId;
+    }
+
+    // Unique per logical change; lets the server recognise a journal replay of something it already applied
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+
     // Setter for file names (used in bulk delete)
     public void setFileNames(List<String> fileNames) {
         this.fileNames = fileNames;
@@ -72,12 +117,31 @@ class FileData implements Serializable {
 
     private String fileName;
     private String content;
+    private long version;
+    private String hash;
+    private long size = -1;
 
     public FileData(String fileName, String content) {
         this.fileName = fileName;
         this.content = content;
     }
 
+    public FileData(String fileName, String content, long version, String hash) {
+        this.fileName = fileName;
+        this.content = content;
+        this.version = version;
+        this.hash = hash;
+    }
+
+    // Metadata-only entry: the content is too large to inline, or the receiver already has it by hash.
+    // Copy it from a local note with the same hash if there is one, otherwise fetch it with FILE_CHUNK_REQUEST
+    public FileData(String fileName, long size, long version, String hash) {
+        this.fileName = fileName;
+        this.size = size;
+        this.version = version;
+        this.hash = hash;
+    }
+
     public String getFileName() {
         return fileName;
     }
@@ -85,4 +149,261 @@ class FileData implements Serializable {
     public String getContent() {
         return content;
     }
-}
\ No newline at end of file
+
+    public boolean isStreamed() {
+        return content == null && size >= 0;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    // Falls back to hashing the content for entries from servers that don't send one
+    public String getHash() {
+        if (hash == null && content != null) {
+            hash = contentHash(content);
+        }
+        return hash;
+    }
+
+    // SHA-256 of the UTF-8 content, hex encoded
+    public static String contentHash(String content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return toHex(digest.digest(content.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
+
+// SyncDelta.java (Shared between client and server)
+// Request: cursor = last cursor the client applied, knownHashes = what the client holds.
+// Response: cursor = new server cursor, changed/deleted = only what moved since the request cursor.
+class SyncDelta implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private long cursor;
+    private Map<String, String> knownHashes;
+    private List<FileData> changed;
+    private List<String> deleted;
+
+    public SyncDelta(long cursor, Map<String, String> knownHashes) {
+        this.cursor = cursor;
+        this.knownHashes = knownHashes;
+    }
+
+    public SyncDelta(long cursor, List<FileData> changed, List<String> deleted) {
+        this.cursor = cursor;
+        this.changed = changed;
+        this.deleted = deleted;
+    }
+
+    public long getCursor() {
+        return cursor;
+    }
+
+    public Map<String, String> getKnownHashes() {
+        return knownHashes;
+    }
+
+    public List<FileData> getChanged() {
+        return changed;
+    }
+
+    public List<String> getDeleted() {
+        return deleted;
+    }
+}
+
+// FileChunk.java (Shared between client and server)
+// One slice of a streamed note. Requests and acks carry no bytes: the offset is then the
+// next byte the sender of the message expects, which is how interrupted transfers resume.
+class FileChunk implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String transferId;
+    private long offset;
+    private long totalSize;
+    private byte[] bytes;
+    private long checksum;
+
+    public FileChunk(String transferId, long offset, long totalSize, byte[] bytes, long checksum) {
+        this.transferId = transferId;
+        this.offset = offset;
+        this.totalSize = totalSize;
+        this.bytes = bytes;
+        this.checksum = checksum;
+    }
+
+    public String getTransferId() {
+        return transferId;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    // CRC32 of bytes
+    public long getChecksum() {
+        return checksum;
+    }
+}
+
+// SessionGrant.java (Shared between client and server)
+// Answer to a LOGIN the server accepted: a session token it signed, to present with AUTHENTICATE on
+// later connections, and when it stops being accepted (epoch millis).
+class SessionGrant implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String token;
+    private long expiresAt;
+
+    public SessionGrant(String token, long expiresAt) {
+        this.token = token;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+}
+
+// BatchResult.java (Shared between client and server)
+// Answer to a BATCH: one status byte per sub-operation, in the order they were sent.
+class BatchResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final byte OK = 0;
+    public static final byte FAILED = 1;
+    public static final byte SKIPPED = 2;
+
+    private byte[] statuses;
+
+    public BatchResult(byte[] statuses) {
+        this.statuses = statuses;
+    }
+
+    public byte[] getStatuses() {
+        return statuses;
+    }
+
+    public int size() {
+        return statuses.length;
+    }
+
+    public boolean isOk(int index) {
+        return statuses[index] == OK;
+    }
+
+    public int getFailureCount() {
+        int failures = 0;
+        for (byte status : statuses) {
+            if (status != OK) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+}
+
+// FilePatch.java (Shared between client and server)
+// Edit script for UPDATE_FILE_PATCH: replace deleteLengths[i] chars at offsets[i] with inserts[i],
+// applied in order to the note whose content hashes to baseHash. The server answers "HASH_MISMATCH"
+// when its copy has a different hash, and the client then falls back to a full UPDATE_FILE.
+class FilePatch implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String baseHash;
+    private String targetHash;
+    private int[] offsets;
+    private int[] deleteLengths;
+    private String[] inserts;
+
+    public FilePatch(String baseHash, String targetHash, int[] offsets, int[] deleteLengths, String[] inserts) {
+        this.baseHash = baseHash;
+        this.targetHash = targetHash;
+        this.offsets = offsets;
+        this.deleteLengths = deleteLengths;
+        this.inserts = inserts;
+    }
+
+    // Single-hunk diff: trims the common prefix and suffix, which covers the usual "typed in one place" save
+    public static FilePatch diff(String base, String target) {
+        int prefix = 0;
+        int max = Math.min(base.length(), target.length());
+        while (prefix < max && base.charAt(prefix) == target.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix
+                && base.charAt(base.length() - 1 - suffix) == target.charAt(target.length() - 1 - suffix)) {
+            suffix++;
+        }
+        String insert = target.substring(prefix, target.length() - suffix);
+        return new FilePatch(FileData.contentHash(base), FileData.contentHash(target),
+                new int[] { prefix }, new int[] { base.length() - suffix - prefix }, new String[] { insert });
+    }
+
+    public String apply(String base) {
+        StringBuilder sb = new StringBuilder(base);
+        for (int i = 0; i < offsets.length; i++) {
+            sb.replace(offsets[i], offsets[i] + deleteLengths[i], inserts[i]);
+        }
+        return sb.toString();
+    }
+
+    // Characters carried by the patch, to decide whether it is worth sending over the full content
+    public long payloadSize() {
+        long size = 0;
+        for (String insert : inserts) {
+            size += insert.length();
+        }
+        return size;
+    }
+
+    public String getBaseHash() {
+        return baseHash;
+    }
+
+    public String getTargetHash() {
+        return targetHash;
+    }
+
+    public int[] getOffsets() {
+        return offsets;
+    }
+
+    public int[] getDeleteLengths() {
+        return deleteLengths;
+    }
+
+    public String[] getInserts() {
+        return inserts;
+    }
+}